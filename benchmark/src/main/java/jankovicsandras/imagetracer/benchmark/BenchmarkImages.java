@@ -0,0 +1,79 @@
+/*
+	BenchmarkImages.java
+	Input images for the ImageTracer benchmarks
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer.benchmark;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+// Image sets by name:
+//  "testimages" : all testimages/*.png
+//  "panda.png" , "smiley.png" , "testimages/1.png" ... : one bundled file
+//  "synthetic" : a generated size x size image with gradients and overlapping shapes, the same for every run
+// Bundled files are searched in the imagetracer.root system property directory, the working directory and its parent.
+public class BenchmarkImages{
+
+	public static BufferedImage [] load (String name, int size) throws Exception {
+		if(name.equals("synthetic")){ return new BufferedImage[]{ synthetic(size, size, 1) }; }
+		File root = root();
+		if(name.equals("testimages")){
+			File [] files = new File(root,"testimages").listFiles();
+			ArrayList<File> pngs = new ArrayList<File>();
+			if(files!=null){ for(File f : files){ if(f.getName().endsWith(".png")){ pngs.add(f); } } }
+			if(pngs.isEmpty()){ throw new IllegalArgumentException("No testimages/*.png in "+root.getAbsolutePath()); }
+			File [] sorted = pngs.toArray(new File[pngs.size()]); Arrays.sort(sorted);
+			BufferedImage [] images = new BufferedImage[sorted.length];
+			for(int i=0; i<sorted.length; i++){ images[i] = ImageIO.read(sorted[i]); }
+			return images;
+		}
+		File f = new File(root,name);
+		if(!f.exists()){ throw new IllegalArgumentException("Image not found: "+f.getAbsolutePath()); }
+		return new BufferedImage[]{ ImageIO.read(f) };
+	}// End of load()
+
+
+	// The repository root with the bundled images
+	static File root (){
+		String prop = System.getProperty("imagetracer.root");
+		if(prop!=null){ return new File(prop); }
+		if(new File("panda.png").exists()){ return new File("."); }
+		return new File("..");
+	}
+
+
+	// Synthetic image: smooth gradient background with many overlapping semi-transparent shapes, like a large illustration
+	public static BufferedImage synthetic (int width, int height, long seed){
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+		Random rnd = new Random(seed);
+		for(int j=0; j<height; j++){
+			for(int i=0; i<width; i++){
+				image.setRGB(i, j, 0xFF000000 | (((i*255)/width)<<16) | (((j*255)/height)<<8) | (((i+j)*127)/(width+height)) );
+			}
+		}
+		Graphics2D g = image.createGraphics();
+		int shapes = (width*height)/4096;
+		for(int s=0; s<shapes; s++){
+			g.setColor(new Color(rnd.nextInt(256), rnd.nextInt(256), rnd.nextInt(256), 128+rnd.nextInt(128)));
+			int x = rnd.nextInt(width), y = rnd.nextInt(height), w = 4+rnd.nextInt(Math.max(1,width/16)), h = 4+rnd.nextInt(Math.max(1,height/16));
+			switch(rnd.nextInt(3)){
+			case 0: g.fillRect(x, y, w, h); break;
+			case 1: g.fillOval(x, y, w, h); break;
+			default: g.fillPolygon(new int[]{x, x+w, x+rnd.nextInt(w)}, new int[]{y, y+rnd.nextInt(h), y+h}, 3);
+			}
+		}
+		g.dispose();
+		return image;
+	}// End of synthetic()
+
+}// End of BenchmarkImages class
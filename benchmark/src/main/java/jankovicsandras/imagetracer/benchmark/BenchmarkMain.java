@@ -0,0 +1,32 @@
+/*
+	BenchmarkMain.java
+	JMH launcher with the GC profiler enabled
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+	Usage: java -jar benchmark/target/benchmarks.jar [JMH options]
+	for example: java -jar benchmark/target/benchmarks.jar PipelineBenchmark.endtoend -p image=synthetic -p size=4096
+
+ */
+package jankovicsandras.imagetracer.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Same as org.openjdk.jmh.Main, but the allocation rate and GC counts are always reported (-prof gc)
+public class BenchmarkMain{
+
+	public static void main (String[] args) throws Exception {
+		CommandLineOptions cmdoptions = new CommandLineOptions(args);
+		if(cmdoptions.shouldHelp() || cmdoptions.shouldList() || cmdoptions.shouldListProfilers() || cmdoptions.shouldListResultFormats()){
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		Options options = new OptionsBuilder().parent(cmdoptions).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+
+}// End of BenchmarkMain class
@@ -0,0 +1,75 @@
+/*
+	CoordinateFormatBenchmark.java
+	Comparing CoordinateFormat.append() with StringBuilder.append(ImageTracer.roundtodec())
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import jankovicsandras.imagetracer.CoordinateFormat;
+import jankovicsandras.imagetracer.ImageTracer;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CoordinateFormatBenchmark{
+
+	static final int VALUES = 1<<16;
+
+	@Param({"0","1","2","3"})
+	public float roundcoords;
+
+	float [] values;
+	StringBuilder sb;
+
+	@Setup
+	public void setup (){
+		// SVG like coordinates: halves and spline control points with scale
+		Random rnd = new Random(1);
+		values = new float[VALUES];
+		for(int i=0; i<VALUES; i++){ values[i] = (float)((rnd.nextInt(8000)/2.0 + (rnd.nextBoolean() ? rnd.nextDouble() : 0)) * 1.5); }
+		sb = new StringBuilder(VALUES*12);
+		// both must write the same characters
+		String s1 = roundtodec().toString(), s2 = coordinateformat().toString();
+		if(!s1.equals(s2)){ throw new IllegalStateException("CoordinateFormat output is different from roundtodec()"); }
+	}// End of setup()
+
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public StringBuilder roundtodec (){
+		sb.setLength(0);
+		for(float v : values){ sb.append(ImageTracer.roundtodec(v,roundcoords)).append(' '); }
+		return sb;
+	}
+
+
+	@Benchmark
+	@OperationsPerInvocation(VALUES)
+	public StringBuilder coordinateformat (){
+		sb.setLength(0);
+		for(float v : values){ CoordinateFormat.append(sb,v,roundcoords); sb.append(' '); }
+		return sb;
+	}
+
+}// End of CoordinateFormatBenchmark class
@@ -0,0 +1,183 @@
+/*
+	PipelineBenchmark.java
+	JMH benchmarks of the ImageTracer stages, one by one and end to end
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+	Parameters (-p name=value1,value2):
+	 image : testimages (all testimages/*.png in one operation), panda.png or another bundled file, synthetic
+	 size : width and height of the synthetic image
+	 numberofcolors : palette size
+	 threads : 1 is sequential, more runs the batch stages and endtoend on a ForkJoinPool of this size
+
+ */
+package jankovicsandras.imagetracer.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jankovicsandras.imagetracer.EdgeLayer;
+import jankovicsandras.imagetracer.ImageTracer;
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+import jankovicsandras.imagetracer.PathBuffer;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PipelineBenchmark{
+
+	@Param({"testimages","panda.png","synthetic"})
+	public String image;
+
+	@Param({"2048"})
+	public int size;
+
+	@Param({"16","64"})
+	public int numberofcolors;
+
+	@Param({"1"})
+	public int threads;
+
+	BufferedImage [] images;
+	ImageData [] imgds;
+	HashMap<String,Float> options;
+	ForkJoinPool pool;
+
+	// inputs of the stages: the outputs of the previous stages
+	IndexedImage [] quantized;
+	EdgeLayer [][] layers;
+	PathBuffer [][] paths, internodes;
+	IndexedImage [] traced;
+
+	@Setup(Level.Trial)
+	public void setup () throws Exception {
+		images = BenchmarkImages.load(image, size);
+		options = ImageTracer.checkoptions(null);
+		options.put("numberofcolors", (float) numberofcolors);
+		pool = threads>1 ? new ForkJoinPool(threads) : null;
+
+		int n = images.length;
+		imgds = new ImageData[n]; quantized = new IndexedImage[n]; layers = new EdgeLayer[n][];
+		paths = new PathBuffer[n][]; internodes = new PathBuffer[n][]; traced = new IndexedImage[n];
+		for(int i=0; i<n; i++){
+			imgds[i] = ImageTracer.loadImageData(images[i]);
+			quantized[i] = ImageTracer.colorquantization(imgds[i], null, options);
+			layers[i] = ImageTracer.compactlayering(quantized[i]);
+			paths[i] = ImageTracer.batchpathscan(ImageTracer.compactlayering(quantized[i]), options.get("pathomit"), null);
+			internodes[i] = ImageTracer.batchinternodes(paths[i], null);
+			traced[i] = new IndexedImage(quantized[i].array, quantized[i].palette);
+			traced[i].pathbuffers = ImageTracer.batchtracelayers(internodes[i], options.get("ltres"), options.get("qtres"), null);
+		}
+	}// End of setup()
+
+	@TearDown(Level.Trial)
+	public void teardown (){
+		if(pool!=null){ pool.shutdown(); }
+	}
+
+
+	// pathscan() clears the edge nodes, so every invocation gets a fresh copy of the layers
+	@State(Scope.Thread)
+	public static class FreshLayers{
+		EdgeLayer [][] layers;
+
+		@Setup(Level.Invocation)
+		public void copy (PipelineBenchmark st){
+			layers = new EdgeLayer[st.layers.length][];
+			for(int i=0; i<layers.length; i++){
+				layers[i] = new EdgeLayer[st.layers[i].length];
+				for(int k=0; k<layers[i].length; k++){
+					EdgeLayer l = st.layers[i][k];
+					layers[i][k] = new EdgeLayer(l.width, l.height, l.left, l.top);
+					System.arraycopy(l.data, 0, layers[i][k].data, 0, l.data.length);
+				}
+			}
+		}
+	}// End of FreshLayers
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Stages
+	//
+	////////////////////////////////////////////////////////////
+
+	@Benchmark
+	public void loadimagedata (Blackhole bh) throws Exception {
+		for(BufferedImage img : images){ bh.consume(ImageTracer.loadImageData(img)); }
+	}
+
+	@Benchmark
+	public void blur (Blackhole bh){
+		for(ImageData imgd : imgds){ bh.consume(ImageTracer.blur(imgd, 5, 50)); }
+	}
+
+	@Benchmark
+	public void colorquantization (Blackhole bh){
+		for(ImageData imgd : imgds){ bh.consume(ImageTracer.colorquantization(imgd, null, options, pool)); }
+	}
+
+	@Benchmark
+	public void layering (Blackhole bh){
+		for(IndexedImage ii : quantized){ bh.consume(ImageTracer.layering(ii)); }
+	}
+
+	@Benchmark
+	public void compactlayering (Blackhole bh){
+		for(IndexedImage ii : quantized){ bh.consume(ImageTracer.compactlayering(ii)); }
+	}
+
+	@Benchmark
+	public void batchpathscan (FreshLayers fresh, Blackhole bh){
+		for(EdgeLayer [] l : fresh.layers){ bh.consume(ImageTracer.batchpathscan(l, options.get("pathomit"), pool)); }
+	}
+
+	@Benchmark
+	public void batchinternodes (Blackhole bh){
+		for(PathBuffer [] p : paths){ bh.consume(ImageTracer.batchinternodes(p, pool)); }
+	}
+
+	@Benchmark
+	public void batchtracelayers (Blackhole bh){
+		for(PathBuffer [] p : internodes){ bh.consume(ImageTracer.batchtracelayers(p, options.get("ltres"), options.get("qtres"), pool)); }
+	}
+
+	@Benchmark
+	public void getsvgstring (Blackhole bh){
+		for(IndexedImage ii : traced){ bh.consume(ImageTracer.getsvgstring(ii, options)); }
+	}
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  End to end
+	//
+	////////////////////////////////////////////////////////////
+
+	@Benchmark
+	public void endtoend (Blackhole bh){
+		for(ImageData imgd : imgds){ bh.consume(ImageTracer.imagedataToSVG(imgd, options, null, pool)); }
+	}
+
+}// End of PipelineBenchmark class
@@ -0,0 +1,95 @@
+/*
+	SplineFitterBenchmark.java
+	Comparing SplineFitter.tracepath() with the recursive ImageTracer.tracepath() on the ArrayList paths
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+	Parameters (-p name=value1,value2):
+	 image : testimages (all testimages/*.png), panda.png or another bundled file, synthetic
+	 ltres, qtres : error tresholds, small values split more and need a deeper stack
+
+ */
+package jankovicsandras.imagetracer.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import jankovicsandras.imagetracer.ImageTracer;
+import jankovicsandras.imagetracer.PathBuffer;
+import jankovicsandras.imagetracer.SplineFitter;
+import jankovicsandras.imagetracer.TraceOptions;
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SplineFitterBenchmark{
+
+	@Param({"testimages","panda.png"})
+	public String image;
+
+	@Param({"1"})
+	public float ltres;
+
+	@Param({"0.01","1"})
+	public float qtres;
+
+	// internodes of all layers of all images, as PathBuffers and as ArrayLists
+	PathBuffer [] internodes;
+	ArrayList<ArrayList<ArrayList<Double[]>>> lists;
+	PathBuffer out;
+	SplineFitter fitter;
+
+	// The results are compared by SplineFitterTest in the main module
+	@Setup(Level.Trial)
+	public void setup () throws Exception {
+		BufferedImage [] images = BenchmarkImages.load(image, 2048);
+		// deterministic quantization: fixed palette
+		TraceOptions options = TraceOptions.DEFAULT.with("colorsampling", 0).with("numberofcolors", 27);
+		ArrayList<PathBuffer> layers = new ArrayList<PathBuffer>();
+		for(BufferedImage img : images){
+			ImageTracer.IndexedImage ii = ImageTracer.colorquantization(ImageTracer.loadImageData(img), null, options, null, null, null);
+			PathBuffer [] paths = ImageTracer.batchpathscan(ImageTracer.compactlayering(ii), options.pathomit, null);
+			for(PathBuffer pb : ImageTracer.batchinternodes(paths, null)){ layers.add(pb); }
+		}
+		internodes = layers.toArray(new PathBuffer[layers.size()]);
+		lists = new ArrayList<ArrayList<ArrayList<Double[]>>>(internodes.length);
+		for(PathBuffer pb : internodes){ lists.add(pb.todoublelists()); }
+		out = new PathBuffer(7, false, 1<<16);
+		fitter = new SplineFitter();
+	}// End of setup()
+
+
+	@Benchmark
+	public void recursive (Blackhole bh){
+		for(ArrayList<ArrayList<Double[]>> l : lists){ bh.consume(ImageTracer.batchtracepaths(l, ltres, qtres)); }
+	}
+
+
+	@Benchmark
+	public PathBuffer splinefitter (){
+		out.clear();
+		for(PathBuffer pb : internodes){
+			for(int p=0; p<pb.pathcount; p++){ fitter.tracepath(pb, p, ltres, qtres, out); }
+		}
+		return out;
+	}
+
+}// End of SplineFitterBenchmark class
@@ -0,0 +1,235 @@
+/*
+	BatchTracer.java
+	Tracing many images in one JVM with a worker pool, used by ImageTracer.main for directories, globs and list files
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.ImageIO;
+
+// Input specifications:
+//  directory : the image files in it (png, jpg, jpeg, gif, bmp), not recursive
+//  glob : like images/*.png or icons/**.png , the directory part before the first wildcard is searched
+//  @listfile : one image filename in every line, empty lines and lines starting with # are skipped
+// Output: <input filename>.svg next to the input if outdir is null. Else the path of the input relative to the base (the
+// directory, or the directory before the first wildcard of the glob) is kept under outdir: images/a/x.png ->
+// outdir/a/x.png.svg, the subdirectories are created. List file inputs (base is null) are outdir/<input filename>.svg.
+// An input with the same output as an earlier input fails, it's not traced.
+// Every image is traced sequentially, threads images at the same time. An error in one image doesn't stop the others.
+public class BatchTracer{
+
+	static final String [] IMAGEEXTENSIONS = {".png",".jpg",".jpeg",".gif",".bmp"};
+
+	// Batch result
+	public static class Summary{
+		public int total, traced, skipped, failed;
+		public long pixels, outputbytes, nanos;
+		public final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+
+		public String toString (){
+			double seconds = nanos/1e9;
+			StringBuilder sb = new StringBuilder();
+			sb.append("Files: ").append(total).append(" , traced: ").append(traced).append(" , skipped (output is newer): ").append(skipped)
+			.append(" , failed: ").append(failed).append("\r\n");
+			sb.append("Time: ").append(String.format("%.2f",seconds)).append(" s , ")
+			.append(String.format("%.2f",seconds>0 ? traced/seconds : 0)).append(" images/s , ")
+			.append(String.format("%.2f",seconds>0 ? pixels/1e6/seconds : 0)).append(" megapixels/s , ")
+			.append(outputbytes).append(" SVG bytes");
+			synchronized(failures){ for(String f : failures){ sb.append("\r\nFAILED: ").append(f); } }
+			return sb.toString();
+		}
+	}// End of Summary
+
+
+	// Is this a batch input specification (directory, glob or @listfile) instead of one image file
+	public static boolean isbatch (String spec){
+		return spec.startsWith("@") || haswildcard(spec) || new File(spec).isDirectory();
+	}
+
+
+	static boolean haswildcard (String spec){
+		return (spec.indexOf('*')>-1) || (spec.indexOf('?')>-1) || (spec.indexOf('[')>-1) || (spec.indexOf('{')>-1);
+	}
+
+
+	// The input files of a specification, sorted by path for directories and globs
+	public static List<File> inputs (String spec) throws IOException {
+		final ArrayList<File> files = new ArrayList<File>();
+		if(spec.startsWith("@")){
+			BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(spec.substring(1)), "UTF-8"));
+			try{
+				String line;
+				while((line = br.readLine())!=null){
+					line = line.trim();
+					if((line.length()>0) && !line.startsWith("#")){ files.add(new File(line)); }
+				}
+			}finally{ br.close(); }
+			return files;
+		}
+		if(haswildcard(spec)){
+			// searching from the directory before the first wildcard
+			String pattern = spec.replace('\\','/');
+			int slash = globslash(pattern);
+			Path base = globbase(pattern).toPath();
+			final PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:"+(slash<0 ? pattern : pattern.substring(slash+1)));
+			final Path root = base;
+			if(Files.isDirectory(base)){
+				Files.walkFileTree(base, new SimpleFileVisitor<Path>(){
+					public FileVisitResult visitFile (Path file, BasicFileAttributes attrs){
+						if(attrs.isRegularFile() && matcher.matches(root.relativize(file))){ files.add(file.toFile()); }
+						return FileVisitResult.CONTINUE;
+					}
+				});
+			}
+			Collections.sort(files);
+			return files;
+		}
+		File dir = new File(spec);
+		File [] list = dir.listFiles();
+		if(list==null){ throw new IOException("Can't list directory "+spec); }
+		for(File f : list){ if(f.isFile() && isimage(f)){ files.add(f); } }
+		Collections.sort(files);
+		return files;
+	}// End of inputs()
+
+
+	// The directory of the relative output paths of a specification, null for a list file
+	public static File base (String spec){
+		if(spec.startsWith("@")){ return null; }
+		if(haswildcard(spec)){ return globbase(spec.replace('\\','/')); }
+		return new File(spec);
+	}// End of base()
+
+
+	// The last slash before the first wildcard of a glob pattern, -1 if there's none
+	static int globslash (String pattern){
+		int wc = pattern.length();
+		for(char c : new char[]{'*','?','[','{'}){ int i = pattern.indexOf(c); if((i>-1)&&(i<wc)){ wc = i; } }
+		return pattern.lastIndexOf('/', wc);
+	}
+
+
+	static File globbase (String pattern){
+		int slash = globslash(pattern);
+		return new File(slash<0 ? "." : (slash==0 ? "/" : pattern.substring(0,slash)));
+	}
+
+
+	static boolean isimage (File f){
+		String name = f.getName().toLowerCase();
+		for(String ext : IMAGEEXTENSIONS){ if(name.endsWith(ext)){ return true; } }
+		return false;
+	}
+
+
+	public static File outputfile (File input, File outdir){ return outputfile(input, null, outdir); }
+	// base can be null, inputs outside base are outdir/<input filename>.svg
+	public static File outputfile (File input, File base, File outdir){
+		if(outdir==null){ return new File(input.getPath()+".svg"); }
+		if(base!=null){
+			Path b = base.toPath().toAbsolutePath().normalize(), in = input.toPath().toAbsolutePath().normalize();
+			if(in.startsWith(b) && !in.equals(b)){ return new File(outdir, b.relativize(in).toString()+".svg"); }
+		}
+		return new File(outdir, input.getName()+".svg");
+	}// End of outputfile()
+
+
+	// Tracing all inputs with threads workers. The pool queue is bounded, so the list of tasks doesn't grow with the inputs.
+	// If skipnewer, inputs with an output which is not older than the input are skipped. log can be null, listener can be null.
+	public static Summary trace (List<File> inputs, final File outdir, HashMap<String,Float> options, int threads, final boolean skipnewer,
+			final PrintStream log, final TraceListener listener) throws InterruptedException {
+		return trace(inputs, outdir, TraceOptions.frommap(options), threads, skipnewer, log, listener);
+	}
+	// The workers share options
+	public static Summary trace (List<File> inputs, final File outdir, final TraceOptions options, int threads, final boolean skipnewer,
+			final PrintStream log, final TraceListener listener) throws InterruptedException {
+		return trace(inputs, null, outdir, options, threads, skipnewer, log, listener);
+	}
+	// base: the relative output paths start here, base(spec) of the input specification, can be null
+	public static Summary trace (List<File> inputs, File base, final File outdir, final TraceOptions options, int threads, final boolean skipnewer,
+			final PrintStream log, final TraceListener listener) throws InterruptedException {
+		final Summary summary = new Summary();
+		final AtomicLong traced = new AtomicLong(), skipped = new AtomicLong(), failed = new AtomicLong(), pixels = new AtomicLong(), outputbytes = new AtomicLong();
+		summary.total = inputs.size();
+		if((outdir!=null) && !outdir.isDirectory()){ outdir.mkdirs(); }
+
+		threads = Math.max(1, threads);
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(threads*2), new ThreadPoolExecutor.CallerRunsPolicy());
+		long t0 = System.nanoTime();
+
+		HashMap<Path,File> outputs = new HashMap<Path,File>();
+		for(final File input : inputs){
+			final File output = outputfile(input, base, outdir);
+			File previous = outputs.put(output.toPath().toAbsolutePath().normalize(), input);
+			if(previous!=null){
+				failed.incrementAndGet();
+				summary.failures.add(input.getPath()+" : same output as "+previous.getPath()+" : "+output.getPath());
+				if(log!=null){ log.println("ERROR "+input.getPath()+" : same output as "+previous.getPath()+" : "+output.getPath()); }
+				continue;
+			}
+			executor.execute(new Runnable(){ public void run(){
+				File tmp = null;
+				try{
+					if(skipnewer && output.exists() && (output.lastModified()>=input.lastModified())){
+						skipped.incrementAndGet();
+						return;
+					}
+					BufferedImage image = ImageIO.read(input);
+					if(image==null){ throw new IOException("Unsupported image format"); }
+					ImageTracer.ImageData imgd = ImageTracer.loadImageData(image);
+					ImageTracer.IndexedImage ii = ImageTracer.imagedataToTracebuffers(imgd, options, null, null, listener);
+					// writing to a temporary file of this task first, so a failed trace doesn't leave a newer partial output
+					File dir = output.getAbsoluteFile().getParentFile();
+					if(!dir.isDirectory()){ Files.createDirectories(dir.toPath()); }
+					tmp = Files.createTempFile(dir.toPath(), output.getName()+".", ".tmp").toFile();
+					ImageTracer.saveSVG(tmp.getPath(), ii, options, listener);
+					Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					traced.incrementAndGet();
+					pixels.addAndGet((long)imgd.width*imgd.height);
+					outputbytes.addAndGet(output.length());
+					if(log!=null){ log.println(input.getPath()+" -> "+output.getPath()); }
+				}catch(Throwable e){
+					failed.incrementAndGet();
+					summary.failures.add(input.getPath()+" : "+e);
+					if(tmp!=null){ tmp.delete(); }
+					if(log!=null){ log.println("ERROR "+input.getPath()+" : "+e); }
+				}
+			}});
+		}
+
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		summary.nanos = System.nanoTime()-t0;
+		summary.traced = (int)traced.get(); summary.skipped = (int)skipped.get(); summary.failed = (int)failed.get();
+		summary.pixels = pixels.get(); summary.outputbytes = outputbytes.get();
+		return summary;
+	}// End of trace()
+
+}// End of BatchTracer class
@@ -0,0 +1,90 @@
+/*
+	ColorCache.java
+	Nearest palette color memo for ImageTracer.colorquantization()
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.util.Arrays;
+
+// Open addressing int -> int table from packed RGBA colors to palette indexes.
+// The palette changes in every quantization cycle, so the table must be cleared before every cycle.
+// The size is fixed, when there's no free slot in MAXPROBES steps, the entry in the first slot is evicted.
+// This is not thread safe, use one cache per thread.
+public class ColorCache{
+
+	static final int MAXPROBES = 8;
+	public static int defaultcapacity = 1<<14;
+
+	final int [] keys, vals;
+	final int mask, shift;
+	boolean empty = true;
+
+	// Statistics, these are not reset by clear()
+	public long hits = 0, misses = 0, evictions = 0;
+
+	public ColorCache(){ this(defaultcapacity); }
+
+	public ColorCache(int capacity){
+		int bits = 4; while( ((1<<bits)<capacity) && (bits<30) ){ bits++; }
+		keys = new int[1<<bits]; vals = new int[1<<bits];
+		mask = (1<<bits)-1; shift = 32-bits;
+		Arrays.fill(vals,-1);
+	}
+
+
+	public int capacity (){ return keys.length; }
+
+
+	// Packing the signed RGBA bytes of a pixel in ImageData.data
+	public static int packrgba (byte[] data, int idx){
+		return ((data[idx]&255)<<24) | ((data[idx+1]&255)<<16) | ((data[idx+2]&255)<<8) | (data[idx+3]&255);
+	}
+
+
+	// Returns the palette index for this color or -1 if it's not in the table
+	public int get (int key){
+		int slot = (key*0x9E3779B1)>>>shift, v;
+		for(int p=0; p<MAXPROBES; p++){
+			v = vals[slot];
+			if(v<0){ misses++; return -1; }
+			if(keys[slot]==key){ hits++; return v; }
+			slot = (slot+1)&mask;
+		}
+		misses++; return -1;
+	}// End of get()
+
+
+	// Storing a palette index, the key must not be in the table (get() returned -1)
+	public void put (int key, int val){
+		int home = (key*0x9E3779B1)>>>shift, slot = home;
+		empty = false;
+		for(int p=0; p<MAXPROBES; p++){
+			if(vals[slot]<0){ keys[slot] = key; vals[slot] = val; return; }
+			slot = (slot+1)&mask;
+		}
+		// no free slot: evicting the entry in the home slot
+		keys[home] = key; vals[home] = val; evictions++;
+	}// End of put()
+
+
+	// Removing all entries, this is required when the palette changes
+	public void clear (){
+		if(!empty){ Arrays.fill(vals,-1); empty = true; }
+	}
+
+
+	// Adding the statistics of another cache to this one, then resetting the other
+	public void addstats (ColorCache other){
+		hits += other.hits; misses += other.misses; evictions += other.evictions;
+		other.hits = 0; other.misses = 0; other.evictions = 0;
+	}
+
+
+	public double hitratio (){
+		return (hits+misses)>0 ? (double)hits/(double)(hits+misses) : 0;
+	}
+
+}// End of ColorCache class
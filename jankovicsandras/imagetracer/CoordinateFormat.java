@@ -0,0 +1,70 @@
+/*
+	CoordinateFormat.java
+	Fixed precision coordinate formatting for ImageTracer.svgpathstring()
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+// append(sb,val,places) writes the same characters as sb.append(ImageTracer.roundtodec(val,places)), but without Math.pow()
+// and the general float to decimal conversion: the value is rounded to a long m = val*10^places , then the digits of m are
+// written with the decimal point, trailing zeros are trimmed, at least one fraction digit is kept like in Float.toString().
+// This is exact if m has at most 7 digits and the value is 0 or >= 0.001 (no exponent notation), else the old way is used.
+public class CoordinateFormat{
+
+	static final int MAXPLACES = 9;
+	static final int MAXDIGITS = 9999999;
+
+	static final double [] POW10 = new double[MAXPLACES+1];
+	static final int [] IPOW10 = new int[MAXPLACES+1];
+	static{
+		for(int i=0; i<=MAXPLACES; i++){ POW10[i] = Math.pow(10,i); IPOW10[i] = (int)POW10[i]; }
+	}
+
+
+	// Appending val rounded to places decimals, the result is the same as sb.append(ImageTracer.roundtodec(val,places))
+	public static void append (StringBuilder sb, float val, float places){
+		int p = (int) places;
+		if( (p!=places) || (p<0) || (p>MAXPLACES) || !appendfast(sb, val, p) ){
+			sb.append(ImageTracer.roundtodec(val,places));
+		}
+	}// End of append()
+
+
+	// Writing the digits of the rounded value, returns false without writing anything if the fast path is not exact
+	static boolean appendfast (StringBuilder sb, float val, int p){
+		double scaled = val*POW10[p];
+		if(!(Math.abs(scaled)<=MAXDIGITS)){ return false; }// NaN, infinite or too many digits
+		int m = (int) Math.round(scaled);
+		if(m==0){ sb.append('0').append('.').append('0'); return true; }
+		int am = m<0 ? -m : m;
+		// values below 0.001 have exponent notation
+		if( (p>3) && (am<IPOW10[p-3]) ){ return false; }
+		if(m<0){ sb.append('-'); }
+		int ipart = am/IPOW10[p], fpart = am-(ipart*IPOW10[p]);
+		appenddigits(sb, ipart);
+		sb.append('.');
+		if(fpart==0){ sb.append('0'); return true; }
+		// trimming trailing zeros
+		int fplaces = p;
+		while((fpart%10)==0){ fpart /= 10; fplaces--; }
+		// leading zeros of the fraction
+		for(int d=fplaces-1; (d>0)&&(fpart<IPOW10[d]); d--){ sb.append('0'); }
+		appenddigits(sb, fpart);
+		return true;
+	}// End of appendfast()
+
+
+	// Appending the decimal digits of a non-negative int
+	static void appenddigits (StringBuilder sb, int v){
+		int d = 0;
+		while( (d<MAXPLACES) && (v>=IPOW10[d+1]) ){ d++; }
+		for(; d>=0; d--){
+			int digit = v/IPOW10[d];
+			sb.append((char)('0'+digit));
+			v -= digit*IPOW10[d];
+		}
+	}// End of appenddigits()
+
+}// End of CoordinateFormat class
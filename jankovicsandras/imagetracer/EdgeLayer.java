@@ -0,0 +1,75 @@
+/*
+	EdgeLayer.java
+	Compact edge node layer for ImageTracer.layering() and pathscan()
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+// Edge node types are 0 ... 15, so two of them are packed in a byte: the even column is the low nibble,
+// the odd column is the high nibble. This is 1/8 of the size of an int[height][width] layer.
+// A layer can cover only a region of the full layer: get() and set() use coordinates relative to left, top.
+public class EdgeLayer{
+
+	public final int width, height, left, top, rowbytes;
+	public final byte [] data;
+
+	public EdgeLayer(int mwidth, int mheight){
+		this(mwidth, mheight, 0, 0);
+	}
+
+	public EdgeLayer(int mwidth, int mheight, int mleft, int mtop){
+		this(mwidth, mheight, mleft, mtop, new byte[((mwidth+1)>>1)*mheight]);
+	}
+
+
+	// Using mdata as storage, this must be zero filled and have at least ((mwidth+1)/2)*mheight bytes
+	public EdgeLayer(int mwidth, int mheight, int mleft, int mtop, byte [] mdata){
+		width = mwidth; height = mheight; left = mleft; top = mtop; rowbytes = (mwidth+1)>>1;
+		data = mdata;
+	}
+
+
+	// Creating a compact copy of an int[height][width] layer
+	public EdgeLayer(int [][] arr){
+		this(arr[0].length, arr.length);
+		for(int j=0; j<height; j++){ for(int i=0; i<width; i++){ set(j,i,arr[j][i]); } }
+	}
+
+
+	public int get (int j, int i){
+		return ( data[(j*rowbytes)+(i>>1)] >> ((i&1)<<2) ) & 15;
+	}
+
+
+	public void set (int j, int i, int v){
+		int idx = (j*rowbytes)+(i>>1);
+		if((i&1)==0){
+			data[idx] = (byte)( (data[idx]&0xF0) | v );
+		}else{
+			data[idx] = (byte)( (data[idx]&0x0F) | (v<<4) );
+		}
+	}
+
+
+	// Number of edge nodes which are not 0 or 15 (these are walked by pathscan())
+	public int countedgenodes (){
+		int n = 0, b;
+		for(int idx=0; idx<rowbytes*height; idx++){
+			b = data[idx];
+			if( ((b&15)!=0) && ((b&15)!=15) ){ n++; }
+			if( ((b&0xF0)!=0) && ((b&0xF0)!=0xF0) ){ n++; }
+		}
+		return n;
+	}
+
+
+	// Converting back to int[height][width], the region only
+	public int [][] toarray (){
+		int [][] arr = new int[height][width];
+		for(int j=0; j<height; j++){ for(int i=0; i<width; i++){ arr[j][i] = get(j,i); } }
+		return arr;
+	}
+
+}// End of EdgeLayer class
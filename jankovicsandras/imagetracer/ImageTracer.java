@@ -40,13 +40,33 @@ For more information, please refer to http://unlicense.org/
 package jankovicsandras.imagetracer;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.IndexColorModel;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Map.Entry;
-import java.util.TreeMap;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
 import javax.imageio.ImageIO;
 
@@ -65,30 +85,66 @@ public class ImageTracer{
 			} else if(arraycontains(args,"help")>-1){
 				System.out.println("Example usage:\r\n\r\njava -jar ImageTracer.jar <filename> outfilename test.svg "+
 						"ltres 1 qtres 1 pathomit 8 colorsampling 1 numberofcolors 16 mincolorratio 0.02 colorquantcycles 3 "+
-						"scale 1 simplifytolerance 0 roundcoords 1 lcpr 0 qcpr 0 desc 1 viewbox 0 blurradius 0 blurdelta 20 \r\n"+
+						"scale 1 simplifytolerance 0 roundcoords 1 lcpr 0 qcpr 0 desc 1 viewbox 0 blurradius 0 blurdelta 20 colorquanttolerance 0 seed 0 colorquantsample 0 quantizer 0 threads 1 \r\n"+
 						"\r\nOnly <filename> is mandatory, if some of the other optional parameters are missing, they will be set to these defaults. "+
 						"\r\nWarning: if outfilename is not specified, then <filename>.svg will be overwritten."+
+						"\r\n\r\nBatch mode: <filename> can be a directory, a glob like \"images/*.png\" or @listfile with one filename per line:"+
+						"\r\n\r\njava -jar ImageTracer.jar images outdir svgs threads 4 skipnewer 1 <options>"+
+						"\r\n\r\nthreads images are traced at the same time. The outputs are <filename>.svg next to the images, or in outdir: "+
+						"\r\nthe subdirectories of the input directory or glob are kept under outdir (outfilename is not used in batch mode), "+
+						"\r\nskipnewer 1 skips images with a newer output. A summary is printed at the end, the exit code is 1 if some images failed."+
+						"\r\n\r\nVery large images: tilesize 1024 reads and traces the image in tiles of 1024x1024 pixels, the result is the same."+
 						"\r\nSee https://github.com/jankovicsandras/imagetracerjava for details. \r\nThis is version "+versionnumber);
 			} else {
 
 				// Parameter parsing
 				String outfilename = args[0]+".svg";
 				HashMap<String,Float> options = new HashMap<String,Float>();
-				String[] parameternames = {"ltres","qtres","pathomit","colorsampling","numberofcolors","mincolorratio","colorquantcycles","scale","simplifytolerance","roundcoords","lcpr","qcpr","desc","viewbox","blurradius","blurdelta","outfilename"};
-				int j = -1; float f = -1;
+				String[] parameternames = {"ltres","qtres","pathomit","colorsampling","numberofcolors","mincolorratio","colorquantcycles","scale","simplifytolerance","roundcoords","lcpr","qcpr","desc","viewbox","blurradius","blurdelta","colorquanttolerance","seed","colorquantsample","quantizer","outfilename","threads","outdir","skipnewer","tilesize"};
+				int j = -1; float f = -1; int threads = 1; String outdir = null; boolean skipnewer = false; int tilesize = 0; boolean outfilenamegiven = false;
 				for (String parametername : parameternames) {
 					j = arraycontains(args,parametername);
 					if(j>-1){
 						if(parametername=="outfilename"){
-							if( j < (args.length-1)){ outfilename = args[j+1]; }
+							if( j < (args.length-1)){ outfilename = args[j+1]; outfilenamegiven = true; }
+						}else if(parametername=="outdir"){
+							if( j < (args.length-1)){ outdir = args[j+1]; }
+						}else if(parametername=="skipnewer"){
+							skipnewer = parsenext(args,j)>0;
+						}else if(parametername=="threads"){
+							f = parsenext(args,j); if(f>0){ threads = (int)f; }
+						}else if(parametername=="tilesize"){
+							f = parsenext(args,j); if(f>0){ tilesize = (int)f; }
 						}else{
 							f = parsenext(args,j); if(f>-1){ options.put(parametername, new Float(f)); }
 						}
 					}
 				}// End of parameternames loop
 
-				// Loading image, tracing, rendering SVG, saving SVG file
-				saveString(outfilename,imageToSVG(args[0],options,null));
+				// Batch mode: tracing threads images at the same time
+				if(BatchTracer.isbatch(args[0])){
+					if(outfilenamegiven){ System.out.println("WARNING: outfilename is not used in batch mode, the outputs are named after the images (see outdir)"); }
+					BatchTracer.Summary summary = BatchTracer.trace(BatchTracer.inputs(args[0]), BatchTracer.base(args[0]), outdir==null ? null : new File(outdir),
+							TraceOptions.frommap(options), threads, skipnewer, System.out, null);
+					System.out.println(summary);
+					if(summary.failed>0){ System.exit(1); }
+					return;
+				}
+
+				// Loading image, tracing, streaming SVG to the file
+				TraceOptions traceoptions = TraceOptions.frommap(options);
+				ForkJoinPool pool = threads>1 ? new ForkJoinPool(threads) : null;
+				try{
+					if(tilesize>0){
+						// Tiled mode: the image is read in strips, only the tiles in progress are in memory
+						TiledTracer.FileSource source = new TiledTracer.FileSource(new File(args[0]));
+						try{
+							saveSVG(outfilename,TiledTracer.trace(source,traceoptions,null,tilesize,pool),traceoptions,null);
+						}finally{ source.close(); }
+					}else{
+						saveSVG(outfilename,imagedataToTracebuffers(loadImageData(args[0]),traceoptions,null,pool,null),traceoptions,null);
+					}
+				}finally{ if(pool!=null){ pool.shutdown(); } }
 
 			}// End of parameter parsing and processing
 
@@ -112,11 +168,22 @@ public class ImageTracer{
 		public int [][] array; // array[x][y] of palette colors
 		public byte [][] palette;// array[palettelength][4] RGBA color palette
 		public ArrayList<ArrayList<ArrayList<Double[]>>> layers;// tracedata
+		public PathBuffer [] pathbuffers;// tracedata in primitive segment buffers, used if layers is null
+		public int [] colorcounts;// pixels of every palette color, can be null
+		public int [][] colorbounds;// bounding boxes of palette colors in pixels [minx,miny,maxx,maxy], can be null
+		public int [] paletteshifts;// largest palette color change before every color quantization cycle, can be null
+		public long [] reassignedpixels;// pixels with a new color in every color quantization cycle, can be null
+		IncrementalTracer.State retracestate;// tiles of IncrementalTracer for the next frame, can be null
 
 		public IndexedImage(int [][] marray, byte [][] mpalette){
 			array = marray; palette = mpalette;
 			width = marray[0].length-2; height = marray.length-2;// Color quantization adds +2 to the original width and height
 		}
+
+		// Without the indexed color array, like the result of TiledTracer
+		public IndexedImage(int mwidth, int mheight, byte [][] mpalette){
+			width = mwidth; height = mheight; palette = mpalette;
+		}
 	}
 
 
@@ -148,6 +215,8 @@ public class ImageTracer{
 		return loadImageData(image);
 	}
 	public static ImageData loadImageData (BufferedImage image) throws Exception {
+		ImageData imgd = loadrasterdata(image);
+		if(imgd!=null){ return imgd; }
 		int width = image.getWidth(); int height = image.getHeight();
 		int[] rawdata = image.getRGB(0, 0, width, height, null, 0, width);
 		byte[] data = new byte[rawdata.length*4];
@@ -161,6 +230,67 @@ public class ImageTracer{
 	}
 
 
+	// Reading the pixels of common image types straight from the DataBuffer, without the getRGB() copy and color model
+	// conversion. Returns null for other types or raster layouts. The result is the same as loadImageData(), because
+	// bytetrans(b) is b^0x80 (the sign bit flipped).
+	static ImageData loadrasterdata (BufferedImage image){
+		int width = image.getWidth(), height = image.getHeight(), n = width*height, type = image.getType();
+		WritableRaster raster = image.getRaster();
+		DataBuffer db = raster.getDataBuffer();
+		SampleModel sm = raster.getSampleModel();
+		// subimages and rasters with padding are read with getRGB()
+		if( (raster.getSampleModelTranslateX()!=0) || (raster.getSampleModelTranslateY()!=0) || (db.getNumBanks()!=1) || (db.getOffset()!=0) ){ return null; }
+		byte [] data = new byte[n*4];
+		int i, j, v;
+
+		if( (type==BufferedImage.TYPE_INT_ARGB) || (type==BufferedImage.TYPE_INT_RGB) ){
+			if( !(sm instanceof SinglePixelPackedSampleModel) || (((SinglePixelPackedSampleModel)sm).getScanlineStride()!=width) ){ return null; }
+			int [] src = ((DataBufferInt)db).getData();
+			int alpha = type==BufferedImage.TYPE_INT_RGB ? 0xff000000 : 0;
+			for(i=0, j=0; i<n; i++, j+=4){
+				v = src[i] | alpha;
+				data[j] = (byte)((v>>>16)^0x80); data[j+1] = (byte)((v>>>8)^0x80); data[j+2] = (byte)(v^0x80); data[j+3] = (byte)((v>>>24)^0x80);
+			}
+			return new ImageData(width,height,data);
+		}
+
+		if( (type==BufferedImage.TYPE_4BYTE_ABGR) || (type==BufferedImage.TYPE_3BYTE_BGR) || (type==BufferedImage.TYPE_BYTE_INDEXED) ){
+			int ps = type==BufferedImage.TYPE_4BYTE_ABGR ? 4 : (type==BufferedImage.TYPE_3BYTE_BGR ? 3 : 1);
+			if( !(sm instanceof ComponentSampleModel) || (((ComponentSampleModel)sm).getPixelStride()!=ps) || (((ComponentSampleModel)sm).getScanlineStride()!=width*ps) ){ return null; }
+			int [] bo = ((ComponentSampleModel)sm).getBandOffsets();
+			byte [] src = ((DataBufferByte)db).getData();
+			if(type==BufferedImage.TYPE_BYTE_INDEXED){
+				// palette lookup, the indexes above the map size are transparent black like in IndexColorModel
+				IndexColorModel icm = (IndexColorModel) image.getColorModel();
+				if(icm.getPixelSize()!=8){ return null; }
+				byte [] lut = new byte[256*4];
+				for(int c=0; c<icm.getMapSize(); c++){
+					v = icm.getRGB(c);
+					lut[c*4] = (byte)((v>>>16)^0x80); lut[(c*4)+1] = (byte)((v>>>8)^0x80); lut[(c*4)+2] = (byte)(v^0x80); lut[(c*4)+3] = (byte)((v>>>24)^0x80);
+				}
+				for(int c=icm.getMapSize(); c<256; c++){ lut[c*4] = lut[(c*4)+1] = lut[(c*4)+2] = lut[(c*4)+3] = (byte)0x80; }
+				for(i=0, j=0; i<n; i++, j+=4){ System.arraycopy(lut, (src[i]&255)*4, data, j, 4); }
+				return new ImageData(width,height,data);
+			}
+			// band offsets of R, G, B (and A) in a pixel
+			int ro = bo[0], go = bo[1], bbo = bo[2];
+			if(ps==4){
+				int ao = bo[3];
+				for(i=0, j=0; i<n*4; i+=4, j+=4){
+					data[j] = (byte)(src[i+ro]^0x80); data[j+1] = (byte)(src[i+go]^0x80); data[j+2] = (byte)(src[i+bbo]^0x80); data[j+3] = (byte)(src[i+ao]^0x80);
+				}
+			}else{
+				for(i=0, j=0; i<n*3; i+=3, j+=4){
+					data[j] = (byte)(src[i+ro]^0x80); data[j+1] = (byte)(src[i+go]^0x80); data[j+2] = (byte)(src[i+bbo]^0x80); data[j+3] = 127;
+				}
+			}
+			return new ImageData(width,height,data);
+		}
+
+		return null;
+	}// End of loadrasterdata()
+
+
 	// The bitshift method in loadImageData creates signed bytes where -1 -> 255 unsigned ; -128 -> 128 unsigned ;
 	// 127 -> 127 unsigned ; 0 -> 0 unsigned ; These will be converted to -128 (representing 0 unsigned) ...
 	// 127 (representing 255 unsigned) and tosvgcolorstr will add +128 to create RGB values 0..255
@@ -177,12 +307,10 @@ public class ImageTracer{
 
 	// Loading an image from a file, tracing when loaded, then returning the SVG String
 	public static String imageToSVG (String filename, HashMap<String,Float> options, byte [][] palette) throws Exception{
-		options = checkoptions(options);
 		ImageData imgd = loadImageData(filename);
 		return imagedataToSVG(imgd,options,palette);
 	}// End of imageToSVG()
 	public static String imageToSVG (BufferedImage image, HashMap<String,Float> options, byte [][] palette) throws Exception{
-		options = checkoptions(options);
 		ImageData imgd = loadImageData(image);
 		return imagedataToSVG(imgd,options,palette);
 	}// End of imageToSVG()
@@ -190,20 +318,27 @@ public class ImageTracer{
 
 	// Tracing ImageData, then returning the SVG String
 	public static String imagedataToSVG (ImageData imgd, HashMap<String,Float> options, byte [][] palette){
-		options = checkoptions(options);
-		IndexedImage ii = imagedataToTracedata(imgd,options,palette);
-		return getsvgstring(ii, options);
+		return imagedataToSVG(imgd,options,palette,null);
+	}// End of imagedataToSVG()
+	public static String imagedataToSVG (ImageData imgd, HashMap<String,Float> options, byte [][] palette, ForkJoinPool pool){
+		return imagedataToSVG(imgd,options,palette,pool,null);
+	}// End of imagedataToSVG()
+	// listener receives the timing and counters of the stages, it can be null
+	public static String imagedataToSVG (ImageData imgd, HashMap<String,Float> options, byte [][] palette, ForkJoinPool pool, TraceListener listener){
+		return imagedataToSVG(imgd,TraceOptions.frommap(options),palette,pool,listener);
+	}// End of imagedataToSVG()
+	public static String imagedataToSVG (ImageData imgd, TraceOptions options, byte [][] palette, ForkJoinPool pool, TraceListener listener){
+		IndexedImage ii = imagedataToTracebuffers(imgd,options,palette,pool,listener);
+		return getsvgstring(ii, options, listener);
 	}// End of imagedataToSVG()
 
 
 	// Loading an image from a file, tracing when loaded, then returning IndexedImage with tracedata in layers
 	public IndexedImage imageToTracedata (String filename, HashMap<String,Float> options, byte [][] palette) throws Exception{
-		options = checkoptions(options);
 		ImageData imgd = loadImageData(filename);
 		return imagedataToTracedata(imgd,options,palette);
 	}// End of imageToTracedata()
 	public IndexedImage imageToTracedata (BufferedImage image, HashMap<String,Float> options, byte [][] palette) throws Exception{
-		options = checkoptions(options);
 		ImageData imgd = loadImageData(image);
 		return imagedataToTracedata(imgd,options,palette);
 	}// End of imageToTracedata()
@@ -211,44 +346,132 @@ public class ImageTracer{
 
 	// Tracing ImageData, then returning IndexedImage with tracedata in layers
 	public static IndexedImage imagedataToTracedata (ImageData imgd, HashMap<String,Float> options, byte [][] palette){
-		// 1. Color quantization
-		IndexedImage ii = colorquantization(imgd, palette, options);
+		return imagedataToTracedata(imgd,options,palette,null);
+	}// End of imagedataToTracedata()
+	// Parallel version: quantization, pathscan, internodes and tracepath run in parallel (per band, layer and path) on pool,
+	// the result is the same as the sequential imagedataToTracedata(). pool==null means sequential.
+	public static IndexedImage imagedataToTracedata (ImageData imgd, HashMap<String,Float> options, byte [][] palette, ForkJoinPool pool){
+		return imagedataToTracedata(imgd,options,palette,pool,null);
+	}// End of imagedataToTracedata()
+	// listener receives the timing and counters of the stages, it can be null
+	public static IndexedImage imagedataToTracedata (ImageData imgd, HashMap<String,Float> options, byte [][] palette, ForkJoinPool pool, TraceListener listener){
+		return imagedataToTracedata(imgd,TraceOptions.frommap(options),palette,pool,listener);
+	}// End of imagedataToTracedata()
+	public static IndexedImage imagedataToTracedata (ImageData imgd, TraceOptions options, byte [][] palette, ForkJoinPool pool, TraceListener listener){
+		IndexedImage ii = imagedataToTracebuffers(imgd,options,palette,pool,listener);
+		// creating the ArrayList tracedata from the buffers
+		ii.layers = tolayers(ii.pathbuffers);
+		return ii;
+	}// End of imagedataToTracedata()
+
+
+	// Tracing ImageData, then returning IndexedImage with tracedata in pathbuffers only, ii.layers will be null.
+	// This doesn't create the boxed ArrayList tracedata.
+	public static IndexedImage imagedataToTracebuffers (ImageData imgd, HashMap<String,Float> options, byte [][] palette, ForkJoinPool pool){
+		return imagedataToTracebuffers(imgd,options,palette,pool,null);
+	}// End of imagedataToTracebuffers()
+	// listener receives the timing and counters of the stages, it can be null
+	public static IndexedImage imagedataToTracebuffers (ImageData imgd, HashMap<String,Float> options, byte [][] palette, ForkJoinPool pool, TraceListener listener){
+		return imagedataToTracebuffers(imgd,TraceOptions.frommap(options),palette,pool,listener,null);
+	}// End of imagedataToTracebuffers()
+	public static IndexedImage imagedataToTracebuffers (ImageData imgd, TraceOptions options, byte [][] palette, ForkJoinPool pool, TraceListener listener){
+		return imagedataToTracebuffers(imgd,options,palette,pool,listener,null);
+	}// End of imagedataToTracebuffers()
+	// arena: the temporary arrays are taken from here if it's not null, see ImageTracerEngine
+	static IndexedImage imagedataToTracebuffers (ImageData imgd, TraceOptions options, byte [][] palette, ForkJoinPool pool, TraceListener listener, ScratchArena arena){
+		return imagedataToTracebuffers(imgd,options,palette,pool,listener,arena,Quantizer.create(options));
+	}// End of imagedataToTracebuffers()
+	static IndexedImage imagedataToTracebuffers (ImageData imgd, TraceOptions options, byte [][] palette, ForkJoinPool pool, TraceListener listener, ScratchArena arena, Quantizer quantizer){
+		long t0 = 0, a0 = 0;
+		// 1. Color quantization (the blur and colorquantization stages are reported by the quantizer)
+		IndexedImage ii = quantizer.quantize(imgd, palette, options, pool, listener, arena);
 		// 2. Layer separation and edge detection
-		int[][][] rawlayers = layering(ii);
+		if(listener!=null){ t0 = System.nanoTime(); a0 = allocatedbytes(pool); }
+		EdgeLayer[] rawlayers = compactlayering(ii, arena);
+		if(listener!=null){
+			listener.stage(TraceListener.LAYERING, System.nanoTime()-t0, allocatedsince(a0,pool));
+			long edgenodes = 0;
+			for(EdgeLayer layer : rawlayers){ edgenodes += layer.countedgenodes(); }
+			listener.count(TraceListener.EDGENODES, edgenodes);
+		}
 		// 3. Batch pathscan
-		ArrayList<ArrayList<ArrayList<Integer[]>>> bps = batchpathscan(rawlayers,(int)(Math.floor(options.get("pathomit"))));
+		int [] pathscancounts = listener==null ? null : new int[2];
+		if(listener!=null){ t0 = System.nanoTime(); a0 = allocatedbytes(pool); }
+		PathBuffer[] bps = batchpathscan(rawlayers,(int)(Math.floor(options.pathomit)),pool,pathscancounts,arena);
+		if(listener!=null){
+			listener.stage(TraceListener.PATHSCAN, System.nanoTime()-t0, allocatedsince(a0,pool));
+			long paths = 0;
+			for(PathBuffer pb : bps){ paths += pb.pathcount; }
+			listener.count(TraceListener.PATHS, paths);
+			listener.count(TraceListener.HOLEPATHS, pathscancounts[0]);
+			listener.count(TraceListener.OMITTEDPATHS, pathscancounts[1]);
+		}
 		// 4. Batch interpollation
-		ArrayList<ArrayList<ArrayList<Double[]>>> bis = batchinternodes(bps);
+		if(listener!=null){ t0 = System.nanoTime(); a0 = allocatedbytes(pool); }
+		PathBuffer[] bis = batchinternodes(bps,pool,arena);
+		if(listener!=null){
+			listener.stage(TraceListener.INTERNODES, System.nanoTime()-t0, allocatedsince(a0,pool));
+			long points = 0;
+			for(PathBuffer pb : bis){ points += pb.records; }
+			listener.count(TraceListener.INTERNODEPOINTS, points);
+		}
 		// 5. Batch tracing
-		ii.layers = batchtracelayers(bis,options.get("ltres"),options.get("qtres"));
+		if(listener!=null){ t0 = System.nanoTime(); a0 = allocatedbytes(pool); }
+		ii.pathbuffers = batchtracelayers(bis,options.ltres,options.qtres,pool,arena);
+		if(listener!=null){
+			listener.stage(TraceListener.TRACEPATH, System.nanoTime()-t0, allocatedsince(a0,pool));
+			long lines = 0, segments = 0;
+			for(PathBuffer pb : ii.pathbuffers){
+				segments += pb.records;
+				for(int s=0; s<pb.records; s++){ if(pb.doubles[s*7]==1.0){ lines++; } }
+			}
+			listener.count(TraceListener.LINES, lines);
+			listener.count(TraceListener.SPLINES, segments-lines);
+		}
 		return ii;
-	}// End of imagedataToTracedata()
+	}// End of imagedataToTracebuffers()
+
+
+	// Allocated bytes of the current thread for TraceListener, -1 if the JVM can't measure it or the work runs on pool
+	static long allocatedbytes (ForkJoinPool pool){
+		if(pool!=null){ return -1; }
+		java.lang.management.ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+		if(mx instanceof com.sun.management.ThreadMXBean){
+			try{
+				return ((com.sun.management.ThreadMXBean)mx).getThreadAllocatedBytes(Thread.currentThread().getId());
+			}catch(UnsupportedOperationException e){ return -1; }
+		}
+		return -1;
+	}// End of allocatedbytes()
+	static long allocatedsince (long a0, ForkJoinPool pool){
+		if(a0<0){ return -1; }
+		long a1 = allocatedbytes(pool);
+		return a1<0 ? -1 : a1-a0;
+	}
+
+
+	// ArrayList tracedata view of segment buffers
+	public static ArrayList<ArrayList<ArrayList<Double[]>>> tolayers (PathBuffer [] pathbuffers){
+		ArrayList<ArrayList<ArrayList<Double[]>>> layers = new ArrayList<ArrayList<ArrayList<Double[]>>>(pathbuffers.length);
+		for(PathBuffer pb : pathbuffers){ layers.add(pb.todoublelists()); }
+		return layers;
+	}
+
+
+	// Segment buffers of ArrayList tracedata
+	public static PathBuffer [] topathbuffers (ArrayList<ArrayList<ArrayList<Double[]>>> layers){
+		PathBuffer [] pathbuffers = new PathBuffer[layers.size()];
+		for(int k=0; k<pathbuffers.length; k++){ pathbuffers[k] = PathBuffer.fromdoublelists(layers.get(k),7); }
+		return pathbuffers;
+	}
 
 
 	// creating options object, setting defaults for missing values
 	public static HashMap<String,Float> checkoptions (HashMap<String,Float> options){
 		if(options==null){ options = new HashMap<String,Float>(); }
-		// Tracing
-		if(!options.containsKey("ltres")){ options.put("ltres",1f); }
-		if(!options.containsKey("qtres")){ options.put("qtres",1f); }
-		if(!options.containsKey("pathomit")){ options.put("pathomit",8f); }
-		// Color quantization
-		if(!options.containsKey("colorsampling")){ options.put("colorsampling",1f); }
-		if(!options.containsKey("numberofcolors")){ options.put("numberofcolors",16f); }
-		if(!options.containsKey("mincolorratio")){ options.put("mincolorratio",0.02f); }
-		if(!options.containsKey("colorquantcycles")){ options.put("colorquantcycles",3f); }
-		// SVG rendering
-		if(!options.containsKey("scale")){ options.put("scale",1f); }
-		if(!options.containsKey("simplifytolerance")){ options.put("simplifytolerance",0f); }
-		if(!options.containsKey("roundcoords")){ options.put("roundcoords",1f); }
-		if(!options.containsKey("lcpr")){ options.put("lcpr",0f); }
-		if(!options.containsKey("qcpr")){ options.put("qcpr",0f); }
-		if(!options.containsKey("desc")){ options.put("desc",1f); }
-		if(!options.containsKey("viewbox")){ options.put("viewbox",0f); }
-		// Blur
-		if(!options.containsKey("blurradius")){ options.put("blurradius",0f); }
-		if(!options.containsKey("blurdelta")){ options.put("blurdelta",20f); }
-
+		for(int i=0; i<TraceOptions.KEYS.length; i++){
+			if(!options.containsKey(TraceOptions.KEYS[i])){ options.put(TraceOptions.KEYS[i],TraceOptions.DEFAULTVALUES[i]); }
+		}
 		return options;
 	}// End of checkoptions()
 
@@ -261,107 +484,371 @@ public class ImageTracer{
 
 	// 1. Color quantization repeated "cycles" times, based on K-means clustering
 	// https://en.wikipedia.org/wiki/Color_quantization    https://en.wikipedia.org/wiki/K-means_clustering
+	// With colorquanttolerance > 0, colorquantcycles is the maximum, the cycles stop when at most colorquanttolerance of the
+	// pixels got an other color and no palette color moved more than colorquanttolerance*MAXCOLORDISTANCE, and a rare
+	// color is randomized only once. ii.paletteshifts and ii.reassignedpixels have the statistics of every cycle.
+	// seed != 0 makes the random palette colors repeatable.
+	// With 0 < colorquantsample < 1, the cycles except the last one train the palette on this ratio of the pixels (at least
+	// colorquantsampleminpixels), and only the last cycle assigns the colors of all pixels. The statistics of the
+	// training cycles count sample pixels.
 	public static IndexedImage colorquantization (ImageData imgd, byte [][] palette, HashMap<String,Float> options){
-		int numberofcolors = (int)Math.floor(options.get("numberofcolors")); float minratio = options.get("mincolorratio"); int cycles = (int)Math.floor(options.get("colorquantcycles"));
+		return colorquantization(imgd, palette, options, null);
+	}// End of colorquantization
+	// The pixel loop of every cycle runs in row bands on pool (if not null), every band has its own palette accumulator,
+	// these are summed before averaging, so the result is the same as the sequential version.
+	public static IndexedImage colorquantization (ImageData imgd, byte [][] palette, HashMap<String,Float> options, ForkJoinPool pool){
+		return colorquantization(imgd, palette, options, pool, null);
+	}// End of colorquantization
+	// cache remembers the closest palette color of already seen pixel colors in a cycle, its hit/miss statistics
+	// include all row bands. If cache is null, a new one is created.
+	public static IndexedImage colorquantization (ImageData imgd, byte [][] palette, HashMap<String,Float> options, ForkJoinPool pool, ColorCache cache){
+		return colorquantization(imgd, palette, options, pool, cache, null);
+	}// End of colorquantization
+	// listener receives the blur and colorquantization stages and the pixels and colors counters, it can be null
+	public static IndexedImage colorquantization (ImageData imgd, byte [][] palette, HashMap<String,Float> options, ForkJoinPool pool, ColorCache cache, TraceListener listener){
+		return colorquantization(imgd, palette, TraceOptions.frommap(options), pool, cache, listener, null);
+	}// End of colorquantization
+	public static IndexedImage colorquantization (ImageData imgd, byte [][] palette, TraceOptions options, ForkJoinPool pool, ColorCache cache, TraceListener listener){
+		return colorquantization(imgd, palette, options, pool, cache, listener, null);
+	}// End of colorquantization
+	// arena: the index array, blur buffers and color cache are taken from here if it's not null
+	static IndexedImage colorquantization (ImageData imgd, byte [][] palette, TraceOptions options, ForkJoinPool pool, ColorCache cache, TraceListener listener, ScratchArena arena){
+		long t0 = 0, a0 = 0, blurnanos = 0, blurbytes = 0;
+		if(listener!=null){ t0 = System.nanoTime(); a0 = allocatedbytes(pool); }
+		int numberofcolors = (int)Math.floor(options.numberofcolors); float minratio = options.mincolorratio; int cycles = (int)Math.floor(options.colorquantcycles);
+		float tolerance = options.colorquanttolerance; boolean converge = tolerance>0; long pixels = (long)imgd.width*imgd.height;
+		Random rng = randomgenerator(options);
 		// Creating indexed color array arr which has a boundary filled with -1 in every direction
-		int [][] arr = new int[imgd.height+2][imgd.width+2];
+		final int [][] arr = arena==null ? new int[imgd.height+2][imgd.width+2] : arena.indexarray(imgd.width, imgd.height);
+		// a reused array is overwritten by the pixel loop, except without cycles
+		if( (arena!=null) && (cycles<1) ){ for(int [] row : arr){ Arrays.fill(row,0); } }
 		for(int j=0; j<(imgd.height+2); j++){ arr[j][0] = -1; arr[j][imgd.width+1 ] = -1; }
 		for(int i=0; i<(imgd.width+2) ; i++){ arr[0][i] = -1; arr[imgd.height+1][i] = -1; }
 
-		int idx=0, cd,cdl,ci,c1,c2,c3,c4;
-
 		// Use custom palette if pal is defined or sample or generate custom length palette
 		if(palette==null){
-			if(options.get("colorsampling")!=0){
-				palette = samplepalette(numberofcolors,imgd);
+			if(options.colorsampling!=0){
+				palette = samplepalette(numberofcolors,imgd,rng);
 			}else{
-				palette = generatepalette(numberofcolors);
+				palette = generatepalette(numberofcolors,rng);
 			}
 		}
 
 		// Selective Gaussian blur preprocessing
-		if( options.get("blurradius") > 0 ){ imgd = blur( imgd, options.get("blurradius"), options.get("blurdelta") ); }
+		if( options.blurradius > 0 ){
+			long bt0 = 0, ba0 = 0;
+			if(listener!=null){ bt0 = System.nanoTime(); ba0 = allocatedbytes(pool); }
+			imgd = blur( imgd, options.blurradius, options.blurdelta, pool, arena );
+			if(listener!=null){
+				blurnanos = System.nanoTime()-bt0; blurbytes = allocatedsince(ba0,pool);
+				listener.stage(TraceListener.BLUR, blurnanos, blurbytes);
+			}
+		}
+
+		// Training the palette on a sample of the (blurred) pixels, the last cycle is the only one with all pixels
+		IndexedImage trained = null;
+		if( (options.colorquantsample>0) && (options.colorquantsample<1) && (cycles>1) ){
+			ImageData sample = samplepixels(imgd, options.colorquantsample);
+			if(sample!=null){
+				trained = colorquantization(sample, palette, options.with("colorquantsample",0).with("blurradius",0), pool, null, null, null);
+				cycles = 1;
+			}
+		}
 
 		long [][] paletteacc = new long[palette.length][5];
 
+		// Row bands for the parallel pixel loop, each with its own accumulator
+		final int bands = pool==null ? 1 : Math.max(1, Math.min(imgd.height, pool.getParallelism()*4));
+		final long [][][] bandacc = new long[bands][][];
+		for(int b=0; b<bands; b++){ bandacc[b] = b==0 ? paletteacc : new long[palette.length][5]; }
+		// Bounding boxes of colors are collected in the last cycle
+		final int [][][] bandbounds = new int[bands][][];
+
+		// Nearest color caches, one for every band; not worth it for tiny palettes
+		final ColorCache [] bandcache = new ColorCache[bands];
+		if(palette.length>colorcacheminpalette){
+			if(cache==null){ cache = arena==null ? new ColorCache() : arena.colorcache(); }
+			for(int b=0; b<bands; b++){ bandcache[b] = b==0 ? cache : new ColorCache(cache.capacity()); }
+		}
+
+		// Convergence statistics
+		final long [] bandreassigned = new long[bands];
+		final int [] paletteshifts = new int[Math.max(0,cycles)]; final long [] reassignedpixels = new long[paletteshifts.length];
+		boolean [] randomized = converge ? new boolean[palette.length] : null;
+		int cyclesdone = 0;
+
 		// Repeat clustering step "cycles" times
 		for(int cnt=0;cnt<cycles;cnt++){
 
 			// Average colors from the second iteration
-			if(cnt>0){
-				// averaging paletteacc for palette
-				float ratio;
-				for(int k=0;k<palette.length;k++){
-					// averaging
-					if(paletteacc[k][3]>0){
-						palette[k][0] = (byte) (-128 + (paletteacc[k][0] / paletteacc[k][4]));
-						palette[k][1] = (byte) (-128 + (paletteacc[k][1] / paletteacc[k][4]));
-						palette[k][2] = (byte) (-128 + (paletteacc[k][2] / paletteacc[k][4]));
-						palette[k][3] = (byte) (-128 + (paletteacc[k][3] / paletteacc[k][4]));
-					}
-					ratio = (float)( (double)(paletteacc[k][4]) / (double)(imgd.width*imgd.height) );
-
-					// Randomizing a color, if there are too few pixels and there will be a new cycle
-					if( (ratio<minratio) && (cnt<(cycles-1)) ){
-						palette[k][0] = (byte) (-128+Math.floor(Math.random()*255));
-						palette[k][1] = (byte) (-128+Math.floor(Math.random()*255));
-						palette[k][2] = (byte) (-128+Math.floor(Math.random()*255));
-						palette[k][3] = (byte) (-128+Math.floor(Math.random()*255));
-					}
+			if(cnt>0){ paletteshifts[cnt] = averagepalette(palette, paletteacc, pixels, minratio, cnt<(cycles-1), rng, randomized); }
+
+			// Reseting palette accumulators for averaging
+			for(int b=0; b<bands; b++){
+				for(int i=0;i<palette.length;i++){
+					bandacc[b][i][0]=0;
+					bandacc[b][i][1]=0;
+					bandacc[b][i][2]=0;
+					bandacc[b][i][3]=0;
+					bandacc[b][i][4]=0;
+				}
+			}
 
-				}// End of palette loop
-			}// End of Average colors from the second iteration
+			// The palette has changed, clearing caches
+			for(int b=0; b<bands; b++){ if(bandcache[b]!=null){ bandcache[b].clear(); } }
 
-			// Reseting palette accumulator for averaging
-			for(int i=0;i<palette.length;i++){
-				paletteacc[i][0]=0;
-				paletteacc[i][1]=0;
-				paletteacc[i][2]=0;
-				paletteacc[i][3]=0;
-				paletteacc[i][4]=0;
+			// Initializing bounding boxes in the last cycle (every cycle can be the last when converging)
+			if( converge || (cnt==(cycles-1)) ){
+				for(int b=0; b<bands; b++){ bandbounds[b] = emptybounds(palette.length); }
 			}
 
 			// loop through all pixels
-			for(int j=0;j<imgd.height;j++){
-				for(int i=0;i<imgd.width;i++){
+			if(bands<2){
+				bandreassigned[0] = quantizerows(imgd, palette, arr, paletteacc, bandcache[0], bandbounds[0], 0, imgd.height);
+			}else{
+				final ImageData bimgd = imgd; final byte [][] bpalette = palette;
+				parallelfor(pool, bands, 1, new IntConsumer(){ public void accept(int b){
+					bandreassigned[b] = quantizerows(bimgd, bpalette, arr, bandacc[b], bandcache[b], bandbounds[b], (int)(((long)bimgd.height*b)/bands), (int)(((long)bimgd.height*(b+1))/bands));
+				}});
+				// summing band accumulators
+				for(int b=1; b<bands; b++){
+					for(int k=0; k<palette.length; k++){
+						for(int c=0; c<5; c++){ paletteacc[k][c] += bandacc[b][k][c]; }
+						if(bandbounds[b]!=null){ addbounds(bandbounds[0][k], bandbounds[b][k]); }
+					}
+					if(bandcache[b]!=null){ bandcache[0].addstats(bandcache[b]); }
+				}
+			}
 
-					idx = ((j*imgd.width)+i)*4;
+			// every pixel gets a color in the first cycle
+			reassignedpixels[cnt] = pixels;
+			if(cnt>0){ reassignedpixels[cnt] = 0; for(long r : bandreassigned){ reassignedpixels[cnt] += r; } }
+			cyclesdone = cnt+1;
 
-					// find closest color from palette by measuring (rectilinear) color distance between this pixel and all palette colors
-					cdl = 256+256+256+256; ci=0;
-					for(int k=0;k<palette.length;k++){
+			// Stopping if the clusters don't change much
+			if( converge && (cnt>0) && (reassignedpixels[cnt]<=tolerance*pixels) && (paletteshifts[cnt]<=tolerance*MAXCOLORDISTANCE) ){ break; }
 
-						// In my experience, https://en.wikipedia.org/wiki/Rectilinear_distance works better than https://en.wikipedia.org/wiki/Euclidean_distance
-						c1 = Math.abs(palette[k][0]-imgd.data[idx]);
-						c2 = Math.abs(palette[k][1]-imgd.data[idx+1]);
-						c3 = Math.abs(palette[k][2]-imgd.data[idx+2]);
-						c4 = Math.abs(palette[k][3]-imgd.data[idx+3]);
-						cd = c1+c2+c3+(c4*4); // weighted alpha seems to help images with transparency
+		}// End of Repeat clustering step "cycles" times
 
-						// Remember this color if this is the closest yet
-						if(cd<cdl){ cdl = cd; ci = k; }
+		IndexedImage ii = new IndexedImage(arr, palette);
+		ii.paletteshifts = Arrays.copyOf(paletteshifts, cyclesdone);
+		ii.reassignedpixels = Arrays.copyOf(reassignedpixels, cyclesdone);
+		if(trained!=null){
+			ii.paletteshifts = concat(trained.paletteshifts, ii.paletteshifts);
+			ii.reassignedpixels = concat(trained.reassignedpixels, ii.reassignedpixels);
+		}
+		if(cycles>0){
+			ii.colorbounds = bandbounds[0];
+			ii.colorcounts = new int[palette.length];
+			for(int k=0; k<palette.length; k++){ ii.colorcounts[k] = (int)paletteacc[k][4]; }
+		}
+		if(listener!=null){
+			long bytes = allocatedsince(a0,pool);
+			listener.stage(TraceListener.COLORQUANTIZATION, System.nanoTime()-t0-blurnanos, (bytes<0)||(blurbytes<0) ? -1 : bytes-blurbytes);
+			listener.count(TraceListener.PIXELS, (long)imgd.width*imgd.height);
+			int colors = 0;
+			for(int [] bb : colorbounds(ii)){ if(bb[0]<=bb[2]){ colors++; } }
+			listener.count(TraceListener.COLORS, colors);
+			listener.count(TraceListener.COLORQUANTCYCLES, ii.reassignedpixels.length);
+			long reassigned = 0; for(int cnt=1; cnt<ii.reassignedpixels.length; cnt++){ reassigned += ii.reassignedpixels[cnt]; }
+			listener.count(TraceListener.REASSIGNEDPIXELS, reassigned);
+		}
+		return ii;
+	}// End of colorquantization
 
-					}// End of palette loop
 
-					// add to palettacc
-					paletteacc[ci][0] += 128+imgd.data[idx];
-					paletteacc[ci][1] += 128+imgd.data[idx+1];
-					paletteacc[ci][2] += 128+imgd.data[idx+2];
-					paletteacc[ci][3] += 128+imgd.data[idx+3];
-					paletteacc[ci][4]++;
+	// Averaging paletteacc for palette, randomizing colors with fewer than pixels*minratio pixels if randomize
+	// (there will be a new cycle). rng is Math.random() if it's null. If randomized is not null, a color is randomized
+	// only if it's not marked there yet, and it's marked. Returns the largest closestcolor() distance of an old and new color.
+	static int averagepalette (byte [][] palette, long [][] paletteacc, long pixels, float minratio, boolean randomize, Random rng, boolean [] randomized){
+		float ratio; int r, g, b, a, shift = 0;
+		for(int k=0;k<palette.length;k++){
+			r = palette[k][0]; g = palette[k][1]; b = palette[k][2]; a = palette[k][3];
+			// averaging
+			if(paletteacc[k][3]>0){
+				palette[k][0] = (byte) (-128 + (paletteacc[k][0] / paletteacc[k][4]));
+				palette[k][1] = (byte) (-128 + (paletteacc[k][1] / paletteacc[k][4]));
+				palette[k][2] = (byte) (-128 + (paletteacc[k][2] / paletteacc[k][4]));
+				palette[k][3] = (byte) (-128 + (paletteacc[k][3] / paletteacc[k][4]));
+			}
+			ratio = (float)( (double)(paletteacc[k][4]) / (double)pixels );
+
+			// Randomizing a color, if there are too few pixels and there will be a new cycle
+			if( (ratio<minratio) && randomize && ((randomized==null) || !randomized[k]) ){
+				palette[k][0] = randombyte(rng);
+				palette[k][1] = randombyte(rng);
+				palette[k][2] = randombyte(rng);
+				palette[k][3] = randombyte(rng);
+				if(randomized!=null){ randomized[k] = true; }
+			}
 
-					arr[j+1][i+1] = ci;
-				}// End of i loop
-			}// End of j loop
+			shift = Math.max(shift, Math.abs(palette[k][0]-r)+Math.abs(palette[k][1]-g)+Math.abs(palette[k][2]-b)+(Math.abs(palette[k][3]-a)*4));
+		}// End of palette loop
+		return shift;
+	}// End of averagepalette()
 
-		}// End of Repeat clustering step "cycles" times
 
-		return new IndexedImage(arr, palette);
-	}// End of colorquantization
+	// Palette training samples are not smaller than this, smaller images are trained on all pixels
+	static int colorquantsampleminpixels = 16384;
+
+
+	// About ratio of the pixels of imgd in a new ImageData (1024 pixels wide), or null if it would not be smaller than
+	// imgd. The pixels are spread evenly with a golden ratio jitter, so the sample doesn't follow columns or rows.
+	static ImageData samplepixels (ImageData imgd, float ratio){
+		long n = (long)imgd.width*imgd.height;
+		ImageData sample = samplebuffer(n, ratio);
+		if(sample==null){ return null; }
+		long m = (long)sample.width*sample.height;
+		double step = (double)n/m;
+		for(int i=0; i<m; i++){ System.arraycopy(imgd.data, (int)(samplepixel(i, n, step)*4), sample.data, i*4, 4); }
+		return sample;
+	}// End of samplepixels()
+
+
+	// Empty sample of about ratio of n pixels, or null if it would not be smaller than n
+	static ImageData samplebuffer (long n, float ratio){
+		long m = Math.max((long)Math.ceil(n*(double)ratio), colorquantsampleminpixels);
+		int cols = (int)Math.min(m, 1024), rows = (int)((m+cols-1)/cols);
+		m = (long)rows*cols;
+		if(m>=n){ return null; }
+		return new ImageData(cols, rows, new byte[(int)m*4]);
+	}// End of samplebuffer()
+
+
+	// The pixel (y*width+x) of sample pixel i, step is n / sample pixels. This grows with i.
+	static long samplepixel (long i, long n, double step){
+		double jitter = (i*0.6180339887498949)%1.0;
+		return Math.min(n-1, (long)((i+jitter)*step));
+	}
+
+
+	static int [] concat (int [] a, int [] b){
+		int [] c = Arrays.copyOf(a, a.length+b.length); System.arraycopy(b, 0, c, a.length, b.length); return c;
+	}
+	static long [] concat (long [] a, long [] b){
+		long [] c = Arrays.copyOf(a, a.length+b.length); System.arraycopy(b, 0, c, a.length, b.length); return c;
+	}
+
+
+	// The largest closestcolor() distance
+	static final int MAXCOLORDISTANCE = 255*7;
+
+
+	// Random numbers of the random palette colors: repeatable if the seed option is not 0, else null for Math.random()
+	static Random randomgenerator (TraceOptions options){
+		return options.seed!=0 ? new Random((long)Math.floor(options.seed)) : null;
+	}
+
+
+	// Random palette color component, the same as (byte)(-128+Math.floor(Math.random()*255)) if rng is null
+	static byte randombyte (Random rng){
+		return (byte)(-128+Math.floor((rng==null ? Math.random() : rng.nextDouble())*255));
+	}
+
+
+	// Palettes longer than this use ColorCache in colorquantization
+	static int colorcacheminpalette = 4;
+
+
+	// Assigning the closest palette color to pixel rows rowfrom ... rowto-1 and adding them to paletteacc
+	// cache and bounds can be null. The closest colors are searched with PaletteSearch (SIMD for long palettes if available).
+	// Returns the number of pixels with a different color in arr than before.
+	static long quantizerows (ImageData imgd, byte [][] palette, int [][] arr, long [][] paletteacc, ColorCache cache, int [][] bounds, int rowfrom, int rowto){
+		int idx=0, ci, key=0; int [] bb; long reassigned = 0;
+		PaletteSearch search = PaletteSearch.create(palette);
+		for(int j=rowfrom;j<rowto;j++){
+			for(int i=0;i<imgd.width;i++){
+
+				idx = ((j*imgd.width)+i)*4;
+
+				// find closest color from palette, looking up the cache first
+				if(cache==null){
+					ci = search.closest(imgd.data, idx);
+				}else{
+					key = ColorCache.packrgba(imgd.data, idx);
+					ci = cache.get(key);
+					if(ci<0){ ci = search.closest(imgd.data, idx); cache.put(key, ci); }
+				}
+
+				// add to palettacc
+				paletteacc[ci][0] += 128+imgd.data[idx];
+				paletteacc[ci][1] += 128+imgd.data[idx+1];
+				paletteacc[ci][2] += 128+imgd.data[idx+2];
+				paletteacc[ci][3] += 128+imgd.data[idx+3];
+				paletteacc[ci][4]++;
+
+				if(arr[j+1][i+1]!=ci){ reassigned++; arr[j+1][i+1] = ci; }
+
+				// bounding box of this color
+				if(bounds!=null){
+					bb = bounds[ci];
+					if(i<bb[0]){ bb[0] = i; } if(j<bb[1]){ bb[1] = j; }
+					if(i>bb[2]){ bb[2] = i; } if(j>bb[3]){ bb[3] = j; }
+				}
+			}// End of i loop
+		}// End of j loop
+		return reassigned;
+	}// End of quantizerows()
+
+
+	// Empty bounding boxes [minx,miny,maxx,maxy] for colorbounds: maxx < minx
+	static int [][] emptybounds (int n){
+		int [][] bounds = new int[n][];
+		for(int k=0; k<n; k++){ bounds[k] = new int[]{ Integer.MAX_VALUE, Integer.MAX_VALUE, -1, -1 }; }
+		return bounds;
+	}
+
+
+	// Extending bounding box bb with bb2
+	static void addbounds (int [] bb, int [] bb2){
+		if(bb2[0]<bb[0]){ bb[0] = bb2[0]; } if(bb2[1]<bb[1]){ bb[1] = bb2[1]; }
+		if(bb2[2]>bb[2]){ bb[2] = bb2[2]; } if(bb2[3]>bb[3]){ bb[3] = bb2[3]; }
+	}
+
+
+	// Calculating colorbounds from the indexed array, if they are missing
+	public static int [][] colorbounds (IndexedImage ii){
+		if(ii.colorbounds!=null){ return ii.colorbounds; }
+		int [][] bounds = emptybounds(ii.palette.length); int [] bb; int[] row;
+		for(int j=0; j<ii.height; j++){
+			row = ii.array[j+1];
+			for(int i=0; i<ii.width; i++){
+				bb = bounds[row[i+1]];
+				if(i<bb[0]){ bb[0] = i; } if(j<bb[1]){ bb[1] = j; }
+				if(i>bb[2]){ bb[2] = i; } if(j>bb[3]){ bb[3] = j; }
+			}
+		}
+		ii.colorbounds = bounds;
+		return bounds;
+	}// End of colorbounds()
+
+
+	// find closest color from palette by measuring (rectilinear) color distance between this pixel and all palette colors
+	static int closestcolor (byte [][] palette, byte [] data, int idx){
+		int cd,cdl = 256+256+256+256,ci=0,c1,c2,c3,c4;
+		for(int k=0;k<palette.length;k++){
+
+			// In my experience, https://en.wikipedia.org/wiki/Rectilinear_distance works better than https://en.wikipedia.org/wiki/Euclidean_distance
+			c1 = Math.abs(palette[k][0]-data[idx]);
+			c2 = Math.abs(palette[k][1]-data[idx+1]);
+			c3 = Math.abs(palette[k][2]-data[idx+2]);
+			c4 = Math.abs(palette[k][3]-data[idx+3]);
+			cd = c1+c2+c3+(c4*4); // weighted alpha seems to help images with transparency
+
+			// Remember this color if this is the closest yet
+			if(cd<cdl){ cdl = cd; ci = k; }
+
+		}// End of palette loop
+		return ci;
+	}// End of closestcolor()
 
 
 	// Generating a palette with numberofcolors, array[numberofcolors][4] where [i][0] = R ; [i][1] = G ; [i][2] = B ; [i][3] = A
 	public static byte[][] generatepalette (int numberofcolors){
+		return generatepalette(numberofcolors, null);
+	}
+	// The colors after the RGB cube are random, from rng or Math.random() if rng is null
+	public static byte[][] generatepalette (int numberofcolors, Random rng){
 		byte [][] palette = new byte[numberofcolors][4];
 		if(numberofcolors<8){
 
@@ -394,10 +881,10 @@ public class ImageTracer{
 
 			// Rest is random
 			for(int rcnt=ccnt;rcnt<numberofcolors;rcnt++){
-				palette[ccnt][0] = (byte)(-128+Math.floor(Math.random()*255));
-				palette[ccnt][1] = (byte)(-128+Math.floor(Math.random()*255));
-				palette[ccnt][2] = (byte)(-128+Math.floor(Math.random()*255));
-				palette[ccnt][3] = (byte)(-128+Math.floor(Math.random()*255));
+				palette[ccnt][0] = randombyte(rng);
+				palette[ccnt][1] = randombyte(rng);
+				palette[ccnt][2] = randombyte(rng);
+				palette[ccnt][3] = randombyte(rng);
 			}
 
 		}// End of numberofcolors check
@@ -407,9 +894,13 @@ public class ImageTracer{
 
 
 	public static byte[][] samplepalette (int numberofcolors, ImageData imgd){
+		return samplepalette(numberofcolors, imgd, null);
+	}
+	// Colors of random pixels, from rng or Math.random() if rng is null
+	public static byte[][] samplepalette (int numberofcolors, ImageData imgd, Random rng){
 		int idx=0; byte [][] palette = new byte[numberofcolors][4];
 		for(int i=0; i<numberofcolors; i++){
-			idx = (int) (Math.floor( (Math.random() * imgd.data.length) / 4 ) * 4);
+			idx = (int) (Math.floor( ((rng==null ? Math.random() : rng.nextDouble()) * imgd.data.length) / 4 ) * 4);
 			palette[i][0] = imgd.data[idx  ];
 			palette[i][1] = imgd.data[idx+1];
 			palette[i][2] = imgd.data[idx+2];
@@ -460,6 +951,60 @@ public class ImageTracer{
 	}// End of layering()
 
 
+	// 2. Layer separation and edge detection into compact EdgeLayers, this is the same as layering(), but
+	// every layer covers only the bounding box of its color (+1 edge node), colors without pixels get empty layers
+	public static EdgeLayer[] compactlayering (IndexedImage ii){
+		return compactlayering(ii, null);
+	}// End of compactlayering()
+	// arena: the layer data arrays are taken from here if it's not null
+	static EdgeLayer[] compactlayering (IndexedImage ii, ScratchArena arena){
+		int val=0, aw = ii.array[0].length, ah = ii.array.length, n1,n2,n3,n4,n5,n6,n7,n8, l, t;
+		int[] prow, row, nrow, bb;
+		int [][] bounds = colorbounds(ii);
+		EdgeLayer[] layers = new EdgeLayer[ii.palette.length];
+		for(int k=0; k<layers.length; k++){
+			bb = bounds[k];
+			// pixel (x,y) has edge nodes (x+1,y+1) ... (x+2,y+2)
+			if(bb[2]<bb[0]){
+				layers[k] = new EdgeLayer(0,0);
+			}else{
+				int w = bb[2]-bb[0]+2, h = bb[3]-bb[1]+2;
+				layers[k] = arena==null ? new EdgeLayer(w, h, bb[0]+1, bb[1]+1) : new EdgeLayer(w, h, bb[0]+1, bb[1]+1, arena.layerdata(k, ((w+1)>>1)*h));
+			}
+		}
+		EdgeLayer layer;
+
+		// Looping through all pixels and calculating edge node type
+		for(int j=1; j<(ah-1); j++){
+			prow = ii.array[j-1]; row = ii.array[j]; nrow = ii.array[j+1];
+			for(int i=1; i<(aw-1); i++){
+
+				// This pixel's indexed color
+				val = row[i]; layer = layers[val]; l = i-layer.left; t = j-layer.top;
+
+				// Are neighbor pixel colors the same?
+				n1 = prow[i-1]==val ? 1 : 0;
+				n2 = prow[i  ]==val ? 1 : 0;
+				n3 = prow[i+1]==val ? 1 : 0;
+				n4 = row[i-1]==val ? 1 : 0;
+				n5 = row[i+1]==val ? 1 : 0;
+				n6 = nrow[i-1]==val ? 1 : 0;
+				n7 = nrow[i  ]==val ? 1 : 0;
+				n8 = nrow[i+1]==val ? 1 : 0;
+
+				// this pixel"s type and looking back on previous pixels
+				layer.set(t+1, l+1, 1 + (n5 * 2) + (n8 * 4) + (n7 * 8));
+				if(n4==0){ layer.set(t+1, l  , 0 + 2 + (n7 * 4) + (n6 * 8)); }
+				if(n2==0){ layer.set(t  , l+1, 0 + (n3*2) + (n5 * 4) + 8); }
+				if(n1==0){ layer.set(t  , l  , 0 + (n2*2) + 4 + (n4 * 8)); }
+
+			}// End of i loop
+		}// End of j loop
+
+		return layers;
+	}// End of compactlayering()
+
+
 	// Lookup tables for pathscan
 	static byte [] pathscan_dir_lookup = {0,0,3,0, 1,0,3,0, 0,3,3,1, 0,3,0,0};
 	static boolean [] pathscan_holepath_lookup = {false,false,false,false, false,false,false,true, false,false,false,true, false,true,true,false };
@@ -547,6 +1092,73 @@ public class ImageTracer{
 	}// End of pathscan()
 
 
+	// 3. pathscan() on a compact EdgeLayer into a PathBuffer (ints, stride 3), the result is the same as pathscan() on the int[][] layer
+	public static PathBuffer pathscan (EdgeLayer layer, float pathomit){
+		return pathscan(layer, pathomit, null);
+	}// End of pathscan()
+	// counts[0] and counts[1] are increased by the number of dropped hole paths and paths shorter than pathomit, counts can be null
+	public static PathBuffer pathscan (EdgeLayer layer, float pathomit, int [] counts){
+		return pathscan(layer, pathomit, counts, new PathBuffer(3, true));
+	}// End of pathscan()
+	// the paths are added to paths, which is returned
+	public static PathBuffer pathscan (EdgeLayer layer, float pathomit, int [] counts, PathBuffer paths){
+		int px=0,py=0,w=layer.width,h=layer.height,dir=0,rowstart,b,v,sx=0,sy=0,ox=layer.left-1,oy=layer.top-1,idx;
+		boolean pathfinished=true, holepath = false;
+		byte[] lookuprow, data = layer.data;
+
+		for(int j=0;j<h;j++){
+			rowstart = j*layer.rowbytes;
+			for(int i=0;i<w;i++){
+				// skipping byte pairs without path nodes (both nibbles 0 or 15)
+				if((i&1)==0){
+					b = data[rowstart+(i>>1)]&255;
+					if( (b==0x00) || (b==0x0F) || (b==0xF0) || (b==0xFF) ){ i++; continue; }
+				}
+				v = layer.get(j,i);
+				if((v!=0)&&(v!=15)){
+
+					// Init
+					px = i; py = j; sx = i; sy = j;
+					pathfinished = false;
+
+					// fill paths will be drawn, but hole paths are also required to remove unnecessary edge nodes
+					dir = pathscan_dir_lookup[ v ]; holepath = pathscan_holepath_lookup[ v ];
+
+					// Path points loop
+					while(!pathfinished){
+
+						// New path point
+						v = layer.get(py,px);
+						idx = paths.newrecord();
+						paths.ints[idx] = px+ox; paths.ints[idx+1] = py+oy; paths.ints[idx+2] = v;
+
+						// Next: look up the replacement, direction and coordinate changes = clear this cell, turn if required, walk forward
+						lookuprow = pathscan_combined_lookup[ v ][ dir ];
+						layer.set(py,px,lookuprow[0]); dir = lookuprow[1]; px += lookuprow[2]; py += lookuprow[3];
+
+						// Close path
+						if((px==sx)&&(py==sy)){
+							pathfinished = true;
+							// Discarding 'hole' type paths and paths shorter than pathomit
+							if( (holepath) || (paths.currentlength()<pathomit) ){
+								if(counts!=null){ if(holepath){ counts[0]++; }else{ counts[1]++; } }
+								paths.discardpath();
+							}else{
+								paths.endpath();
+							}
+						}
+
+					}// End of Path points loop
+
+				}// End of Follow path
+
+			}// End of i loop
+		}// End of j loop
+
+		return paths;
+	}// End of pathscan()
+
+
 	// 3. Batch pathscan
 	public static ArrayList<ArrayList<ArrayList<Integer[]>>> batchpathscan (int [][][] layers, float pathomit){
 		ArrayList<ArrayList<ArrayList<Integer[]>>> bpaths = new ArrayList<ArrayList<ArrayList<Integer[]>>>();
@@ -555,54 +1167,130 @@ public class ImageTracer{
 		}
 		return bpaths;
 	}
+	// 3. Batch pathscan on pool, one task per layer, layer order is kept
+	public static ArrayList<ArrayList<ArrayList<Integer[]>>> batchpathscan (final int [][][] layers, final float pathomit, ForkJoinPool pool){
+		if(pool==null){ return batchpathscan(layers,pathomit); }
+		final ArrayList<ArrayList<Integer[]>>[] results = newlists(layers.length);
+		parallelfor(pool, layers.length, 1, new IntConsumer(){ public void accept(int k){ results[k] = pathscan(layers[k],pathomit); } });
+		return tolist(results);
+	}
+	// 3. Batch pathscan on compact layers into PathBuffers, one task per layer on pool (can be null)
+	public static PathBuffer[] batchpathscan (final EdgeLayer [] layers, final float pathomit, ForkJoinPool pool){
+		return batchpathscan(layers, pathomit, pool, null);
+	}
+	// counts: hole and omitted paths of all layers like in pathscan(), can be null
+	public static PathBuffer[] batchpathscan (final EdgeLayer [] layers, final float pathomit, ForkJoinPool pool, int [] counts){
+		return batchpathscan(layers, pathomit, pool, counts, null);
+	}
+	// arena: the PathBuffers are taken from here if it's not null
+	static PathBuffer[] batchpathscan (final EdgeLayer [] layers, final float pathomit, ForkJoinPool pool, int [] counts, ScratchArena arena){
+		final PathBuffer[] bpaths = new PathBuffer[layers.length];
+		for(int k=0; k<layers.length; k++){ bpaths[k] = arena==null ? new PathBuffer(3, true) : arena.buffer(ScratchArena.PATHS, k); }
+		final int [][] layercounts = counts==null ? null : new int[layers.length][2];
+		if(pool==null){
+			for(int k=0; k<layers.length; k++){ pathscan(layers[k],pathomit,counts,bpaths[k]); }
+		}else{
+			parallelfor(pool, layers.length, 1, new IntConsumer(){ public void accept(int k){
+				pathscan(layers[k],pathomit,layercounts==null?null:layercounts[k],bpaths[k]);
+			}});
+			if(counts!=null){ for(int [] lc : layercounts){ counts[0] += lc[0]; counts[1] += lc[1]; } }
+		}
+		return bpaths;
+	}
 
 
 	// 4. interpolating between path points for nodes with 8 directions ( East, SouthEast, S, SW, W, NW, N, NE )
 	public static ArrayList<ArrayList<Double[]>> internodes (ArrayList<ArrayList<Integer[]>> paths){
 		ArrayList<ArrayList<Double[]>> ins = new ArrayList<ArrayList<Double[]>>();
-		ArrayList<Double[]> thisinp;
+		// paths loop
+		for(int pacnt=0; pacnt<paths.size(); pacnt++){
+			ins.add(pathinternodes(paths.get(pacnt)));
+		}// End of paths loop
+		return ins;
+	}// End of internodes()
+
+
+	// 4. interpolating the points of one path
+	public static ArrayList<Double[]> pathinternodes (ArrayList<Integer[]> path){
+		ArrayList<Double[]> thisinp = new ArrayList<Double[]>();
 		Double[] thispoint, nextpoint = new Double[2];
 		Integer[] pp1, pp2, pp3;
-		int palen=0,nextidx=0,nextidx2=0;
+		int palen=path.size(),nextidx=0,nextidx2=0;
+
+		// pathpoints loop
+		for(int pcnt=0;pcnt<palen;pcnt++){
+
+			// interpolate between two path points
+			nextidx = (pcnt+1)%palen; nextidx2 = (pcnt+2)%palen;
+			thisinp.add(new Double[3]);
+			thispoint = thisinp.get(thisinp.size()-1);
+			pp1 = path.get(pcnt);
+			pp2 = path.get(nextidx);
+			pp3 = path.get(nextidx2);
+			thispoint[0] = (pp1[0]+pp2[0]) / 2.0;
+			thispoint[1] = (pp1[1]+pp2[1]) / 2.0;
+			nextpoint[0] = (pp2[0]+pp3[0]) / 2.0;
+			nextpoint[1] = (pp2[1]+pp3[1]) / 2.0;
+
+			// line segment direction to the next point
+			if(thispoint[0] < nextpoint[0]){
+				if     (thispoint[1] < nextpoint[1]){ thispoint[2] = 1.0; }// SouthEast
+				else if(thispoint[1] > nextpoint[1]){ thispoint[2] = 7.0; }// NE
+				else                                { thispoint[2] = 0.0; } // E
+			}else if(thispoint[0] > nextpoint[0]){
+				if     (thispoint[1] < nextpoint[1]){ thispoint[2] = 3.0; }// SW
+				else if(thispoint[1] > nextpoint[1]){ thispoint[2] = 5.0; }// NW
+				else                                { thispoint[2] = 4.0; }// W
+			}else{
+				if     (thispoint[1] < nextpoint[1]){ thispoint[2] = 2.0; }// S
+				else if(thispoint[1] > nextpoint[1]){ thispoint[2] = 6.0; }// N
+				else                                { thispoint[2] = 8.0; }// center, this should not happen
+			}
+
+		}// End of pathpoints loop
+		return thisinp;
+	}// End of pathinternodes()
 
+
+	// 4. interpolating the paths p ... pto-1 of a pathscan() PathBuffer into out (doubles, stride 3)
+	public static void internodes (PathBuffer paths, int pfrom, int pto, PathBuffer out){
+		int [] pp = paths.ints;
+		int palen,start,idx,pp1,pp2,pp3;
+		double thisx, thisy, nextx, nexty;
 		// paths loop
-		for(int pacnt=0; pacnt<paths.size(); pacnt++){
-			ins.add(new ArrayList<Double[]>());
-			thisinp = ins.get(ins.size()-1);
-			palen = paths.get(pacnt).size();
+		for(int pacnt=pfrom; pacnt<pto; pacnt++){
+			palen = paths.pathlength(pacnt); start = paths.pathstart(pacnt);
+			out.ensurecapacity(out.records+palen);
 			// pathpoints loop
 			for(int pcnt=0;pcnt<palen;pcnt++){
 
 				// interpolate between two path points
-				nextidx = (pcnt+1)%palen; nextidx2 = (pcnt+2)%palen;
-				thisinp.add(new Double[3]);
-				thispoint = thisinp.get(thisinp.size()-1);
-				pp1 = paths.get(pacnt).get(pcnt);
-				pp2 = paths.get(pacnt).get(nextidx);
-				pp3 = paths.get(pacnt).get(nextidx2);
-				thispoint[0] = (pp1[0]+pp2[0]) / 2.0;
-				thispoint[1] = (pp1[1]+pp2[1]) / 2.0;
-				nextpoint[0] = (pp2[0]+pp3[0]) / 2.0;
-				nextpoint[1] = (pp2[1]+pp3[1]) / 2.0;
+				pp1 = (start+pcnt)*3; pp2 = (start+((pcnt+1)%palen))*3; pp3 = (start+((pcnt+2)%palen))*3;
+				thisx = (pp[pp1]+pp[pp2]) / 2.0;
+				thisy = (pp[pp1+1]+pp[pp2+1]) / 2.0;
+				nextx = (pp[pp2]+pp[pp3]) / 2.0;
+				nexty = (pp[pp2+1]+pp[pp3+1]) / 2.0;
+				idx = out.newrecord();
+				out.doubles[idx] = thisx; out.doubles[idx+1] = thisy;
 
 				// line segment direction to the next point
-				if(thispoint[0] < nextpoint[0]){
-					if     (thispoint[1] < nextpoint[1]){ thispoint[2] = 1.0; }// SouthEast
-					else if(thispoint[1] > nextpoint[1]){ thispoint[2] = 7.0; }// NE
-					else                                { thispoint[2] = 0.0; } // E
-				}else if(thispoint[0] > nextpoint[0]){
-					if     (thispoint[1] < nextpoint[1]){ thispoint[2] = 3.0; }// SW
-					else if(thispoint[1] > nextpoint[1]){ thispoint[2] = 5.0; }// NW
-					else                                { thispoint[2] = 4.0; }// W
+				if(thisx < nextx){
+					if     (thisy < nexty){ out.doubles[idx+2] = 1.0; }// SouthEast
+					else if(thisy > nexty){ out.doubles[idx+2] = 7.0; }// NE
+					else                  { out.doubles[idx+2] = 0.0; } // E
+				}else if(thisx > nextx){
+					if     (thisy < nexty){ out.doubles[idx+2] = 3.0; }// SW
+					else if(thisy > nexty){ out.doubles[idx+2] = 5.0; }// NW
+					else                  { out.doubles[idx+2] = 4.0; }// W
 				}else{
-					if     (thispoint[1] < nextpoint[1]){ thispoint[2] = 2.0; }// S
-					else if(thispoint[1] > nextpoint[1]){ thispoint[2] = 6.0; }// N
-					else                                { thispoint[2] = 8.0; }// center, this should not happen
+					if     (thisy < nexty){ out.doubles[idx+2] = 2.0; }// S
+					else if(thisy > nexty){ out.doubles[idx+2] = 6.0; }// N
+					else                  { out.doubles[idx+2] = 8.0; }// center, this should not happen
 				}
 
 			}// End of pathpoints loop
+			out.endpath();
 		}// End of paths loop
-		return ins;
 	}// End of internodes()
 
 
@@ -614,6 +1302,29 @@ public class ImageTracer{
 		}
 		return binternodes;
 	}
+	// 4. Batch interpollation of PathBuffers, paths of big layers are split into chunks on pool (can be null), path order is kept
+	public static PathBuffer[] batchinternodes (final PathBuffer [] bpaths, final ForkJoinPool pool){
+		return batchinternodes(bpaths, pool, null);
+	}// End of batchinternodes()
+	// arena: the PathBuffers are taken from here if it's not null
+	static PathBuffer[] batchinternodes (final PathBuffer [] bpaths, final ForkJoinPool pool, ScratchArena arena){
+		final PathBuffer[] binternodes = new PathBuffer[bpaths.length];
+		for(int k=0; k<bpaths.length; k++){
+			binternodes[k] = arena==null ? new PathBuffer(3, false, bpaths[k].records) : arena.buffer(ScratchArena.INTERNODES, k);
+		}
+		if(pool==null){
+			for(int k=0; k<bpaths.length; k++){
+				internodes(bpaths[k], 0, bpaths[k].pathcount, binternodes[k]);
+			}
+		}else{
+			parallelfor(pool, bpaths.length, 1, new IntConsumer(){ public void accept(final int k){
+				chunked(pool, bpaths[k].pathcount, binternodes[k], new ChunkBody(){ public void run(int pfrom, int pto, PathBuffer out){
+					internodes(bpaths[k], pfrom, pto, out);
+				}});
+			}});
+		}
+		return binternodes;
+	}// End of batchinternodes()
 
 
 	// 5. tracepath() : recursively trying to fit straight and quadratic spline segments on the 8 direction internode path
@@ -758,6 +1469,13 @@ public class ImageTracer{
 	}// End of fitseq()
 
 
+	// 5. tracepath() on path p of an internodes() PathBuffer, appending the segments as a new path to out (doubles, stride 7).
+	// The result is the same as tracepath() on the ArrayList path. For many paths, SplineFitter.tracepath() reuses its stack.
+	public static void tracepath (PathBuffer internodes, int p, float ltreshold, float qtreshold, PathBuffer out){
+		new SplineFitter().tracepath(internodes, p, ltreshold, qtreshold, out);
+	}// End of tracepath()
+
+
 	// 5. Batch tracing paths
 	public static ArrayList<ArrayList<Double[]>> batchtracepaths (ArrayList<ArrayList<Double[]>> internodepaths, float ltres,float qtres){
 		ArrayList<ArrayList<Double[]>> btracedpaths = new ArrayList<ArrayList<Double[]>>();
@@ -776,6 +1494,109 @@ public class ImageTracer{
 		}
 		return btbis;
 	}
+	// 5. Batch tracing internodes PathBuffers, paths of big layers are split into chunks on pool (can be null), path order is kept
+	public static PathBuffer[] batchtracelayers (final PathBuffer [] binternodes, final float ltres, final float qtres, final ForkJoinPool pool){
+		return batchtracelayers(binternodes, ltres, qtres, pool, null);
+	}// End of batchtracelayers()
+	// arena: the PathBuffers are taken from here if it's not null
+	static PathBuffer[] batchtracelayers (final PathBuffer [] binternodes, final float ltres, final float qtres, final ForkJoinPool pool, ScratchArena arena){
+		final PathBuffer[] btbis = new PathBuffer[binternodes.length];
+		for(int k=0; k<binternodes.length; k++){
+			btbis[k] = arena==null ? new PathBuffer(7, false, binternodes[k].records/4) : arena.buffer(ScratchArena.SEGMENTS, k);
+		}
+		if(pool==null){
+			SplineFitter fitter = new SplineFitter();
+			for(int k=0; k<binternodes.length; k++){
+				for(int p=0; p<binternodes[k].pathcount; p++){ fitter.tracepath(binternodes[k], p, ltres, qtres, btbis[k]); }
+			}
+		}else{
+			parallelfor(pool, binternodes.length, 1, new IntConsumer(){ public void accept(final int k){
+				chunked(pool, binternodes[k].pathcount, btbis[k], new ChunkBody(){ public void run(int pfrom, int pto, PathBuffer out){
+					SplineFitter fitter = new SplineFitter();
+					for(int p=pfrom; p<pto; p++){ fitter.tracepath(binternodes[k], p, ltres, qtres, out); }
+				}});
+			}});
+		}
+		return btbis;
+	}// End of batchtracelayers()
+	// 5. Batch tracing layers on pool, paths are split into chunks, layer and path order is kept
+	public static ArrayList<ArrayList<ArrayList<Double[]>>> batchtracelayers (final ArrayList<ArrayList<ArrayList<Double[]>>> binternodes, final float ltres, final float qtres, final ForkJoinPool pool){
+		if(pool==null){ return batchtracelayers(binternodes,ltres,qtres); }
+		final ArrayList<Double[]>[][] results = newlistrows(binternodes.size());
+		parallelfor(pool, binternodes.size(), 1, new IntConsumer(){ public void accept(final int k){
+			final ArrayList<ArrayList<Double[]>> paths = binternodes.get(k);
+			results[k] = newlists(paths.size());
+			parallelfor(pool, paths.size(), parallelpathgrain, new IntConsumer(){ public void accept(int pcnt){ results[k][pcnt] = tracepath(paths.get(pcnt),ltres,qtres); } });
+		}});
+		ArrayList<ArrayList<ArrayList<Double[]>>> btbis = new ArrayList<ArrayList<ArrayList<Double[]>>>();
+		for(int k=0; k<results.length; k++){ btbis.add(tolist(results[k])); }
+		return btbis;
+	}
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Parallel helpers
+	//
+	////////////////////////////////////////////////////////////
+
+	// Paths of a layer are processed in chunks of this many paths on the pool
+	static int parallelpathgrain = 32;
+
+
+	// Running body for 0 ... n-1 on pool, the range is split until the chunks are not bigger than grain.
+	// When called from a task of the same pool (nested layers and paths), the current worker joins the work.
+	static void parallelfor (ForkJoinPool pool, int n, int grain, IntConsumer body){
+		if(n<1){ return; }
+		RangeTask task = new RangeTask(0, n, Math.max(1,grain), body);
+		if(ForkJoinTask.inForkJoinPool() && (ForkJoinTask.getPool()==pool)){ task.invoke(); }else{ pool.invoke(task); }
+	}// End of parallelfor()
+
+
+	static class RangeTask extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		final int from, to, grain; final IntConsumer body;
+		RangeTask(int mfrom, int mto, int mgrain, IntConsumer mbody){ from = mfrom; to = mto; grain = mgrain; body = mbody; }
+		protected void compute(){
+			if((to-from)<=grain){
+				for(int i=from; i<to; i++){ body.accept(i); }
+			}else{
+				int mid = (from+to)>>>1;
+				invokeAll(new RangeTask(from,mid,grain,body), new RangeTask(mid,to,grain,body));
+			}
+		}
+	}// End of RangeTask class
+
+
+	// Processing paths 0 ... n-1 in chunks of parallelpathgrain on pool, every chunk writes into its own PathBuffer,
+	// these are appended to out in order. A single chunk writes into out directly.
+	interface ChunkBody{ void run(int pfrom, int pto, PathBuffer out); }
+
+	static void chunked (ForkJoinPool pool, final int n, PathBuffer out, final ChunkBody body){
+		final int chunks = (n+parallelpathgrain-1)/parallelpathgrain;
+		if(chunks<2){ body.run(0, n, out); return; }
+		final PathBuffer [] parts = new PathBuffer[chunks];
+		final int stride = out.stride; final boolean intbuffer = out.ints!=null;
+		parallelfor(pool, chunks, 1, new IntConsumer(){ public void accept(int c){
+			parts[c] = new PathBuffer(stride, intbuffer);
+			body.run(c*parallelpathgrain, Math.min(n,(c+1)*parallelpathgrain), parts[c]);
+		}});
+		for(PathBuffer part : parts){ out.append(part); }
+	}// End of chunked()
+
+
+	// Arrays of ArrayLists without raw types: new ArrayList<T>[n] and new ArrayList<T>[n][]
+	@SuppressWarnings("unchecked")
+	static <T> ArrayList<T>[] newlists (int n){ return (ArrayList<T>[]) new ArrayList<?>[n]; }
+	@SuppressWarnings("unchecked")
+	static <T> ArrayList<T>[][] newlistrows (int n){ return (ArrayList<T>[][]) new ArrayList<?>[n][]; }
+
+
+	static <T> ArrayList<T> tolist (T[] arr){
+		ArrayList<T> list = new ArrayList<T>(arr.length);
+		for(T t : arr){ list.add(t); }
+		return list;
+	}
 
 
 	////////////////////////////////////////////////////////////
@@ -791,28 +1612,39 @@ public class ImageTracer{
 
 	// Getting SVG path element string from a traced path
 	public static void svgpathstring (StringBuilder sb, String desc, ArrayList<Double[]> segments, String colorstr, HashMap<String,Float> options){
-		float scale = options.get("scale"), lcpr = options.get("lcpr"), qcpr = options.get("qcpr"), roundcoords = (float) Math.floor(options.get("roundcoords"));
+		ArrayList<ArrayList<Double[]>> paths = new ArrayList<ArrayList<Double[]>>(); paths.add(segments);
+		svgpathstring(sb, desc, PathBuffer.fromdoublelists(paths,7), 0, colorstr, options);
+	}// End of svgpathstring()
+	// Getting SVG path element string from path p of a segment PathBuffer
+	public static void svgpathstring (StringBuilder sb, String desc, PathBuffer segments, int p, String colorstr, HashMap<String,Float> options){
+		svgpathstring(sb, desc, segments, p, colorstr, TraceOptions.frommap(options));
+	}// End of svgpathstring()
+	public static void svgpathstring (StringBuilder sb, String desc, PathBuffer segments, int p, String colorstr, TraceOptions options){
+		float scale = options.scale, lcpr = options.lcpr, qcpr = options.qcpr, roundcoords = (float) Math.floor(options.roundcoords);
+		double [] seg = segments.doubles;
+		int first = segments.pathstart(p)*7, last = (segments.pathstart(p)+segments.pathlength(p))*7, s;
 		// Path
-		sb.append("<path ").append(desc).append(colorstr).append("d=\"" ).append("M ").append(segments.get(0)[1]*scale).append(" ").append(segments.get(0)[2]*scale).append(" ");
+		sb.append("<path ").append(desc).append(colorstr).append("d=\"" ).append("M ").append(seg[first+1]*scale).append(" ").append(seg[first+2]*scale).append(" ");
 
 		if( roundcoords == -1 ){
-			for(int pcnt=0;pcnt<segments.size();pcnt++){
-				if(segments.get(pcnt)[0]==1.0){
-					sb.append("L ").append(segments.get(pcnt)[3]*scale).append(" ").append(segments.get(pcnt)[4]*scale).append(" ");
+			for(s=first;s<last;s+=7){
+				if(seg[s]==1.0){
+					sb.append("L ").append(seg[s+3]*scale).append(" ").append(seg[s+4]*scale).append(" ");
 				}else{
-					sb.append("Q ").append(segments.get(pcnt)[3]*scale).append(" ").append(segments.get(pcnt)[4]*scale).append(" ").append(segments.get(pcnt)[5]*scale).append(" ").append(segments.get(pcnt)[6]*scale).append(" ");
+					sb.append("Q ").append(seg[s+3]*scale).append(" ").append(seg[s+4]*scale).append(" ").append(seg[s+5]*scale).append(" ").append(seg[s+6]*scale).append(" ");
 				}
 			}
 		}else{
-			for(int pcnt=0;pcnt<segments.size();pcnt++){
-				if(segments.get(pcnt)[0]==1.0){
-					sb.append("L ").append(roundtodec((float)(segments.get(pcnt)[3]*scale),roundcoords)).append(" ")
-					.append(roundtodec((float)(segments.get(pcnt)[4]*scale),roundcoords)).append(" ");
+			// CoordinateFormat.append() writes the same as append(roundtodec())
+			for(s=first;s<last;s+=7){
+				if(seg[s]==1.0){
+					sb.append("L "); CoordinateFormat.append(sb,(float)(seg[s+3]*scale),roundcoords);
+					sb.append(' '); CoordinateFormat.append(sb,(float)(seg[s+4]*scale),roundcoords); sb.append(' ');
 				}else{
-					sb.append("Q ").append(roundtodec((float)(segments.get(pcnt)[3]*scale),roundcoords)).append(" ")
-					.append(roundtodec((float)(segments.get(pcnt)[4]*scale),roundcoords)).append(" ")
-					.append(roundtodec((float)(segments.get(pcnt)[5]*scale),roundcoords)).append(" ")
-					.append(roundtodec((float)(segments.get(pcnt)[6]*scale),roundcoords)).append(" ");
+					sb.append("Q "); CoordinateFormat.append(sb,(float)(seg[s+3]*scale),roundcoords);
+					sb.append(' '); CoordinateFormat.append(sb,(float)(seg[s+4]*scale),roundcoords);
+					sb.append(' '); CoordinateFormat.append(sb,(float)(seg[s+5]*scale),roundcoords);
+					sb.append(' '); CoordinateFormat.append(sb,(float)(seg[s+6]*scale),roundcoords); sb.append(' ');
 				}
 			}
 		}// End of roundcoords check
@@ -820,15 +1652,15 @@ public class ImageTracer{
 		sb.append("Z\" />");
 
 		// Rendering control points
-		for(int pcnt=0;pcnt<segments.size();pcnt++){
-			if((lcpr>0)&&(segments.get(pcnt)[0]==1.0)){
-				sb.append( "<circle cx=\"").append(segments.get(pcnt)[3]*scale).append("\" cy=\"").append(segments.get(pcnt)[4]*scale).append("\" r=\"").append(lcpr).append("\" fill=\"white\" stroke-width=\"").append(lcpr*0.2).append("\" stroke=\"black\" />");
+		for(s=first;s<last;s+=7){
+			if((lcpr>0)&&(seg[s]==1.0)){
+				sb.append( "<circle cx=\"").append(seg[s+3]*scale).append("\" cy=\"").append(seg[s+4]*scale).append("\" r=\"").append(lcpr).append("\" fill=\"white\" stroke-width=\"").append(lcpr*0.2).append("\" stroke=\"black\" />");
 			}
-			if((qcpr>0)&&(segments.get(pcnt)[0]==2.0)){
-				sb.append( "<circle cx=\"").append(segments.get(pcnt)[3]*scale).append("\" cy=\"").append(segments.get(pcnt)[4]*scale).append("\" r=\"").append(qcpr).append("\" fill=\"cyan\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"black\" />");
-				sb.append( "<circle cx=\"").append(segments.get(pcnt)[5]*scale).append("\" cy=\"").append(segments.get(pcnt)[6]*scale).append("\" r=\"").append(qcpr).append("\" fill=\"white\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"black\" />");
-				sb.append( "<line x1=\"").append(segments.get(pcnt)[1]*scale).append("\" y1=\"").append(segments.get(pcnt)[2]*scale).append("\" x2=\"").append(segments.get(pcnt)[3]*scale).append("\" y2=\"").append(segments.get(pcnt)[4]*scale).append("\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"cyan\" />");
-				sb.append( "<line x1=\"").append(segments.get(pcnt)[3]*scale).append("\" y1=\"").append(segments.get(pcnt)[4]*scale).append("\" x2=\"").append(segments.get(pcnt)[5]*scale).append("\" y2=\"").append(segments.get(pcnt)[6]*scale).append("\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"cyan\" />");
+			if((qcpr>0)&&(seg[s]==2.0)){
+				sb.append( "<circle cx=\"").append(seg[s+3]*scale).append("\" cy=\"").append(seg[s+4]*scale).append("\" r=\"").append(qcpr).append("\" fill=\"cyan\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"black\" />");
+				sb.append( "<circle cx=\"").append(seg[s+5]*scale).append("\" cy=\"").append(seg[s+6]*scale).append("\" r=\"").append(qcpr).append("\" fill=\"white\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"black\" />");
+				sb.append( "<line x1=\"").append(seg[s+1]*scale).append("\" y1=\"").append(seg[s+2]*scale).append("\" x2=\"").append(seg[s+3]*scale).append("\" y2=\"").append(seg[s+4]*scale).append("\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"cyan\" />");
+				sb.append( "<line x1=\"").append(seg[s+3]*scale).append("\" y1=\"").append(seg[s+4]*scale).append("\" x2=\"").append(seg[s+5]*scale).append("\" y2=\"").append(seg[s+6]*scale).append("\" stroke-width=\"").append(qcpr*0.2).append("\" stroke=\"cyan\" />");
 			}// End of quadratic control points
 		}
 
@@ -837,55 +1669,159 @@ public class ImageTracer{
 
 	// Converting tracedata to an SVG string, paths are drawn according to a Z-index
 	// the optional lcpr and qcpr are linear and quadratic control point radiuses
+	// ii.layers is used if it's not null, else ii.pathbuffers
 	public static String getsvgstring (IndexedImage ii, HashMap<String,Float> options){
-		options = checkoptions(options);
+		return getsvgstring(ii, options, null);
+	}// End of getsvgstring()
+	// listener receives the svg stage and the outputbytes counter, it can be null
+	public static String getsvgstring (IndexedImage ii, HashMap<String,Float> options, TraceListener listener){
+		return getsvgstring(ii, TraceOptions.frommap(options), listener);
+	}// End of getsvgstring()
+	public static String getsvgstring (IndexedImage ii, TraceOptions options, TraceListener listener){
+		StringBuilder svgstr = new StringBuilder();
+		try{
+			rendersvg(ii, options, svgstr, null, listener);
+		}catch(IOException e){ throw new IllegalStateException(e); }// this can't happen without a Writer
+		return svgstr.toString();
+	}// End of getsvgstring()
+
+
+	// Streaming the SVG to out while walking the Z-index, without creating the SVG string. The output is the same as getsvgstring().
+	// out is not closed, only flushed.
+	public static void writesvg (IndexedImage ii, HashMap<String,Float> options, Writer out) throws IOException {
+		writesvg(ii, options, out, null);
+	}// End of writesvg()
+	public static void writesvg (IndexedImage ii, HashMap<String,Float> options, OutputStream out) throws IOException {
+		writesvg(ii, options, out, null);
+	}// End of writesvg()
+	public static void writesvg (IndexedImage ii, HashMap<String,Float> options, WritableByteChannel out) throws IOException {
+		writesvg(ii, options, out, null);
+	}// End of writesvg()
+	// listener receives the svg stage and the outputbytes counter, it can be null
+	public static void writesvg (IndexedImage ii, HashMap<String,Float> options, Writer out, TraceListener listener) throws IOException {
+		writesvg(ii, TraceOptions.frommap(options), out, listener);
+	}// End of writesvg()
+	public static void writesvg (IndexedImage ii, HashMap<String,Float> options, OutputStream out, TraceListener listener) throws IOException {
+		writesvg(ii, TraceOptions.frommap(options), out, listener);
+	}// End of writesvg()
+	public static void writesvg (IndexedImage ii, HashMap<String,Float> options, WritableByteChannel out, TraceListener listener) throws IOException {
+		writesvg(ii, TraceOptions.frommap(options), out, listener);
+	}// End of writesvg()
+	public static void writesvg (IndexedImage ii, TraceOptions options, Writer out, TraceListener listener) throws IOException {
+		rendersvg(ii, options, new StringBuilder(svgflushsize+1024), out, listener);
+		out.flush();
+	}// End of writesvg()
+	public static void writesvg (IndexedImage ii, TraceOptions options, OutputStream out, TraceListener listener) throws IOException {
+		writesvg(ii, options, new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), svgflushsize), listener);
+	}// End of writesvg()
+	public static void writesvg (IndexedImage ii, TraceOptions options, WritableByteChannel out, TraceListener listener) throws IOException {
+		writesvg(ii, options, Channels.newWriter(out, "UTF-8"), listener);
+	}// End of writesvg()
+
+
+	// Saving tracedata as an SVG file, streaming
+	public static void saveSVG (String filename, IndexedImage ii, HashMap<String,Float> options) throws IOException {
+		saveSVG(filename, ii, options, null);
+	}// End of saveSVG()
+	public static void saveSVG (String filename, IndexedImage ii, HashMap<String,Float> options, TraceListener listener) throws IOException {
+		saveSVG(filename, ii, TraceOptions.frommap(options), listener);
+	}// End of saveSVG()
+	public static void saveSVG (String filename, IndexedImage ii, TraceOptions options, TraceListener listener) throws IOException {
+		FileOutputStream fos = new FileOutputStream(new File(filename).getAbsoluteFile());
+		try{
+			writesvg(ii, options, fos, listener);
+		}finally{ fos.close(); }
+	}// End of saveSVG()
+
+
+	// SVG rendering: the content of sb is written to out and sb is cleared after every path when it's longer than svgflushsize,
+	// if out is null then the whole SVG is collected in sb
+	public static int svgflushsize = 1<<16;
+	static void rendersvg (IndexedImage ii, TraceOptions options, StringBuilder svgstr, Writer out, TraceListener listener) throws IOException {
+		long t0 = 0, a0 = 0, outputchars = 0;
+		if(listener!=null){ t0 = System.nanoTime(); a0 = allocatedbytes(null); }
+		PathBuffer [] layers = ii.layers!=null ? topathbuffers(ii.layers) : ii.pathbuffers;
+		char [] chars = out==null ? null : new char[svgflushsize+1024];
 		// SVG start
-		int w = (int) (ii.width * options.get("scale")), h = (int) (ii.height * options.get("scale"));
-		String viewboxorviewport = options.get("viewbox")!=0 ? "viewBox=\"0 0 "+w+" "+h+"\" " : "width=\""+w+"\" height=\""+h+"\" ";
-		StringBuilder svgstr = new StringBuilder("<svg "+viewboxorviewport+"version=\"1.1\" xmlns=\"http://www.w3.org/2000/svg\" ");
-		if(options.get("desc")!=0){ svgstr.append("desc=\"Created with ImageTracer.java version "+ImageTracer.versionnumber+"\" "); }
+		int w = (int) (ii.width * options.scale), h = (int) (ii.height * options.scale);
+		String viewboxorviewport = options.viewbox!=0 ? "viewBox=\"0 0 "+w+" "+h+"\" " : "width=\""+w+"\" height=\""+h+"\" ";
+		svgstr.append("<svg ").append(viewboxorviewport).append("version=\"1.1\" xmlns=\"http://www.w3.org/2000/svg\" ");
+		if(options.desc!=0){ svgstr.append("desc=\"Created with ImageTracer.java version "+ImageTracer.versionnumber+"\" "); }
 		svgstr.append(">");
 
 		// creating Z-index
-		TreeMap <Double,Integer[]> zindex = new TreeMap <Double,Integer[]>();
-		double label;
-		// Layer loop
-		for(int k=0; k<ii.layers.size(); k++) {
-
-			// Path loop
-			for(int pcnt=0; pcnt<ii.layers.get(k).size(); pcnt++){
-
-				// Label (Z-index key) is the startpoint of the path, linearized
-				label = (ii.layers.get(k).get(pcnt).get(0)[2] * w) + ii.layers.get(k).get(pcnt).get(0)[1];
-				// Creating new list if required
-				if(!zindex.containsKey(label)){ zindex.put(label,new Integer[2]); }
-				// Adding layer and path number to list
-				zindex.get(label)[0] = new Integer(k);
-				zindex.get(label)[1] = new Integer(pcnt);
-			}// End of path loop
-
-		}// End of layer loop
-
-		// Sorting Z-index is not required, TreeMap is sorted automatically
+		int [] layerstart = new int[layers.length+1];
+		int [] zindex = zindex(layers, w, layerstart);
 
 		// Drawing
 		// Z-index loop
 		String thisdesc = "";
-		for(Entry<Double, Integer[]> entry : zindex.entrySet()) {
-			if(options.get("desc")!=0){ thisdesc = "desc=\"l "+entry.getValue()[0]+" p "+entry.getValue()[1]+"\" "; }else{ thisdesc = ""; }
+		String [] colorstrs = new String[layers.length];
+		int k = 0, pcnt;
+		for(int z=0; z<zindex.length; z++){
+			// layer and path number of the z-th path
+			while(zindex[z]>=layerstart[k+1]){ k++; }
+			while(zindex[z]<layerstart[k]){ k--; }
+			pcnt = zindex[z]-layerstart[k];
+			if(colorstrs[k]==null){ colorstrs[k] = tosvgcolorstr(ii.palette[k]); }
+			if(options.desc!=0){ thisdesc = "desc=\"l "+k+" p "+pcnt+"\" "; }else{ thisdesc = ""; }
 			svgpathstring(svgstr,
 					thisdesc,
-					ii.layers.get(entry.getValue()[0]).get(entry.getValue()[1]),
-					tosvgcolorstr(ii.palette[entry.getValue()[0]]),
+					layers[k],
+					pcnt,
+					colorstrs[k],
 					options);
+			if((out!=null)&&(svgstr.length()>svgflushsize)){ outputchars += svgstr.length(); chars = flushsvg(svgstr, chars, out); }
 		}
 
 		// SVG End
 		svgstr.append("</svg>");
+		outputchars += svgstr.length();
+		if(out!=null){ flushsvg(svgstr, chars, out); }
 
-		return svgstr.toString();
+		// the SVG is ASCII, so the number of bytes is the number of chars
+		if(listener!=null){
+			listener.stage(TraceListener.SVG, System.nanoTime()-t0, allocatedsince(a0,null));
+			listener.count(TraceListener.OUTPUTBYTES, outputchars);
+		}
 
-	}// End of getsvgstring()
+	}// End of rendersvg()
+
+
+	// Z-index: the paths are drawn in the order of their linearized startpoints (label = y*w + x), paths with the same label
+	// are drawn in layer and path order. Path pcnt of layer k is numbered layerstart[k]+pcnt, this returns these numbers in
+	// drawing order. layerstart must have layers.length+1 elements.
+	public static int [] zindex (PathBuffer [] layers, int w, int [] layerstart){
+		int n = 0;
+		for(int k=0; k<layers.length; k++){ layerstart[k] = n; n += layers[k].pathcount; }
+		layerstart[layers.length] = n;
+		long [] labels = new long[n]; int [] order = new int[n];
+		int i = 0, s;
+		// Layer loop
+		for(int k=0; k<layers.length; k++){
+			// Path loop
+			for(int pcnt=0; pcnt<layers[k].pathcount; pcnt++){
+				// Label (Z-index key) is the startpoint of the path, linearized
+				s = layers[k].pathstart(pcnt)*7;
+				labels[i] = RadixSort.sortablebits((layers[k].doubles[s+2] * w) + layers[k].doubles[s+1]);
+				order[i] = i; i++;
+			}// End of path loop
+		}// End of layer loop
+		// stable sorting, ties keep the layer and path order
+		RadixSort.sort(labels, order, n);
+		return order;
+	}// End of zindex()
+
+
+	// Writing the content of sb to out through the chars buffer and clearing sb, returns the (possibly grown) buffer
+	static char [] flushsvg (StringBuilder sb, char [] chars, Writer out) throws IOException {
+		int len = sb.length();
+		if(len>chars.length){ chars = new char[len]; }
+		sb.getChars(0, len, chars, 0);
+		out.write(chars, 0, len);
+		sb.setLength(0);
+		return chars;
+	}// End of flushsvg()
 
 
 	static String tosvgcolorstr (byte[] c){
@@ -898,95 +1834,185 @@ public class ImageTracer{
 			{0.063327,0.093095,0.122589,0.144599,0.152781,0.144599,0.122589,0.093095,0.063327}, {0.049692,0.069304,0.089767,0.107988,0.120651,0.125194,0.120651,0.107988,0.089767,0.069304,0.049692} };
 
 
-	// Selective Gaussian blur for preprocessing
-	static ImageData blur (ImageData imgd, float rad, float del){
-		int i,j,k,d,idx;
-		double racc,gacc,bacc,aacc,wacc;
-		ImageData imgd2 = new ImageData(imgd.width,imgd.height,new byte[imgd.width*imgd.height*4]);
+	// Gaussian kernels in fixed point: gks * 1000000, the values of gks have 6 decimals, so these are exact
+	static int[][] gksfixed = fixedkernels();
+	static int[][] fixedkernels (){
+		int [][] fixed = new int[gks.length][];
+		for(int r=0; r<gks.length; r++){
+			fixed[r] = new int[gks[r].length];
+			for(int k=0; k<gks[r].length; k++){ fixed[r][k] = (int)Math.round(gks[r][k]*1000000); }
+		}
+		return fixed;
+	}// End of fixedkernels()
+
+
+	// The double blur of same pixel values with the whole kernel: gksflat[radius-1][value+128], see blurvalue()
+	static byte[][] gksflat = flatkernels();
+	static byte[][] flatkernels (){
+		byte [][] flat = new byte[gks.length][256];
+		for(int r=0; r<gks.length; r++){
+			for(int v=-128; v<128; v++){
+				double vacc = 0, wacc = 0;
+				for(int k=0; k<gks[r].length; k++){ vacc += v * gks[r][k]; wacc += gks[r][k]; }
+				flat[r][v+128] = (byte) Math.floor(vacc / wacc);
+			}
+		}
+		return flat;
+	}// End of flatkernels()
+
 
+	// Selective Gaussian blur for preprocessing
+	public static ImageData blur (ImageData imgd, float rad, float del){
+		return blur(imgd, rad, del, null);
+	}// End of blur()
+	// The rows are blurred in parallel on pool if it's not null, the result is the same
+	public static ImageData blur (ImageData imgd, float rad, float del, ForkJoinPool pool){
+		return blur(imgd, rad, del, pool, null, 0, 0);
+	}// End of blur()
+	// arena: the result and the half blurred copy are taken from here if it's not null
+	static ImageData blur (ImageData imgd, float rad, float del, ForkJoinPool pool, ScratchArena arena){
+		return blur(imgd, rad, del, pool, arena, 0, 0);
+	}// End of blur()
+	// imgd is a region of a bigger image at left, top: the pixels in column 0 and row 0 of the full image are not used like
+	// above, the other pixels outside imgd are missing, so only the pixels at least radius away from the region edges are exact.
+	// The weighted sums are in integers with the gksfixed kernels, the kernel loop has no bounds checks except near the
+	// edges, and the selective step is done in the vertical pass. The result is the same as the double version, see blurvalue().
+	static ImageData blur (final ImageData imgd, float rad, float del, ForkJoinPool pool, ScratchArena arena, int left, int top){
 		// radius and delta limits, this kernel
-		int radius = (int)Math.floor(rad); if(radius<1){ return imgd; } if(radius>5){ radius = 5; }
-		int delta = (int)Math.abs(del); if(delta>1024){ delta = 1024; }
-		double[] thisgk = gks[radius-1];
-
-		// loop through all pixels, horizontal blur
-		for( j=0; j < imgd.height; j++ ){
-			for( i=0; i < imgd.width; i++ ){
-
-				racc = 0; gacc = 0; bacc = 0; aacc = 0; wacc = 0;
-				// gauss kernel loop
-				for( k = -radius; k < (radius+1); k++){
-					// add weighted color values
-					if( ((i+k) > 0) && ((i+k) < imgd.width) ){
-						idx = ((j*imgd.width)+i+k)*4;
-						racc += imgd.data[idx  ] * thisgk[k+radius];
-						gacc += imgd.data[idx+1] * thisgk[k+radius];
-						bacc += imgd.data[idx+2] * thisgk[k+radius];
-						aacc += imgd.data[idx+3] * thisgk[k+radius];
-						wacc += thisgk[k+radius];
-					}
-				}
-				// The new pixel
-				idx = ((j*imgd.width)+i)*4;
-				imgd2.data[idx  ] = (byte) Math.floor(racc / wacc);
-				imgd2.data[idx+1] = (byte) Math.floor(gacc / wacc);
-				imgd2.data[idx+2] = (byte) Math.floor(bacc / wacc);
-				imgd2.data[idx+3] = (byte) Math.floor(aacc / wacc);
-
-			}// End of width loop
-		}// End of horizontal blur
-
-		// copying the half blurred imgd2
-		byte[] himgd = imgd2.data.clone();
-
-		// loop through all pixels, vertical blur
-		for( j=0; j < imgd.height; j++ ){
-			for( i=0; i < imgd.width; i++ ){
-
-				racc = 0; gacc = 0; bacc = 0; aacc = 0; wacc = 0;
-				// gauss kernel loop
-				for( k = -radius; k < (radius+1); k++){
-					// add weighted color values
-					if( ((j+k) > 0) && ((j+k) < imgd.height) ){
-						idx = (((j+k)*imgd.width)+i)*4;
-						racc += himgd[idx  ] * thisgk[k+radius];
-						gacc += himgd[idx+1] * thisgk[k+radius];
-						bacc += himgd[idx+2] * thisgk[k+radius];
-						aacc += himgd[idx+3] * thisgk[k+radius];
-						wacc += thisgk[k+radius];
-					}
-				}
-				// The new pixel
-				idx = ((j*imgd.width)+i)*4;
-				imgd2.data[idx  ] = (byte) Math.floor(racc / wacc);
-				imgd2.data[idx+1] = (byte) Math.floor(gacc / wacc);
-				imgd2.data[idx+2] = (byte) Math.floor(bacc / wacc);
-				imgd2.data[idx+3] = (byte) Math.floor(aacc / wacc);
+		int r = (int)Math.floor(rad); if(r<1){ return imgd; } if(r>5){ r = 5; }
+		final int radius = r, width = imgd.width, height = imgd.height, n = width*height*4;
+		int d = (int)Math.abs(del); if(d>1024){ d = 1024; }
+		final int delta = d;
+		final int [] kernel = gksfixed[radius-1];
+		final double [] gk = gks[radius-1];
+		// the first column and row which can be used
+		final int firstcol = Math.max(0, 1-left), firstrow = Math.max(0, 1-top);
+
+		final ImageData imgd2 = new ImageData(width,height,arena==null ? new byte[n] : arena.blurbuffer(0,n));
+		final byte [] himgd = arena==null ? new byte[n] : arena.blurbuffer(1,n);
+
+		// row bands, the vertical pass needs the whole horizontal pass
+		final int bands = pool==null ? 1 : Math.max(1, Math.min(height, pool.getParallelism()*4));
+		IntConsumer horizontal = new IntConsumer(){ public void accept(int b){
+			for(int j=(b*height)/bands; j<((b+1)*height)/bands; j++){ blurrow(imgd.data, himgd, j*width*4, width, firstcol, kernel, gk, radius); }
+		}};
+		IntConsumer vertical = new IntConsumer(){ public void accept(int b){
+			int [] acc = new int[width*4];
+			for(int j=(b*height)/bands; j<((b+1)*height)/bands; j++){ blurcolumns(imgd.data, himgd, imgd2.data, acc, j, width, height, firstrow, kernel, gk, radius, delta); }
+		}};
+		if(bands<2){
+			horizontal.accept(0); vertical.accept(0);
+		}else{
+			parallelfor(pool, bands, 1, horizontal);
+			parallelfor(pool, bands, 1, vertical);
+		}
+
+		return imgd2;
 
-			}// End of width loop
-		}// End of vertical blur
+	}// End of blur()
 
-		// Selective blur: loop through all pixels
-		for( j=0; j < imgd.height; j++ ){
-			for( i=0; i < imgd.width; i++ ){
 
-				idx = ((j*imgd.width)+i)*4;
-				// d is the difference between the blurred and the original pixel
-				d = Math.abs(imgd2.data[idx  ] - imgd.data[idx  ]) + Math.abs(imgd2.data[idx+1] - imgd.data[idx+1]) +
-						Math.abs(imgd2.data[idx+2] - imgd.data[idx+2]) + Math.abs(imgd2.data[idx+3] - imgd.data[idx+3]);
-				// selective blur: if d>delta, put the original pixel back
-				if(d>delta){
-					imgd2.data[idx  ] = imgd.data[idx  ];
-					imgd2.data[idx+1] = imgd.data[idx+1];
-					imgd2.data[idx+2] = imgd.data[idx+2];
-					imgd2.data[idx+3] = imgd.data[idx+3];
+	// Horizontal blur of the row starting at base: columns firstcol ... width-1 are used
+	static void blurrow (byte [] src, byte [] dst, int base, int width, int firstcol, int [] kernel, double [] gk, int radius){
+		int i,k,idx,w,wacc,racc,gacc,bacc,aacc,kfrom,kto,wsum=0;
+		for(k=0; k<kernel.length; k++){ wsum += kernel[k]; }
+		// the full kernel fits between innerfrom and innerto
+		int innerfrom = Math.min(width, firstcol+radius), innerto = Math.max(innerfrom, width-radius);
+		for(i=0; i<width; i++){
+			if(i==innerfrom){
+				// inner columns: all kernel weights
+				for(; i<innerto; i++){
+					racc = 0; gacc = 0; bacc = 0; aacc = 0;
+					idx = base+((i-radius)*4);
+					for(k=0; k<kernel.length; k++){
+						w = kernel[k];
+						racc += src[idx  ] * w;
+						gacc += src[idx+1] * w;
+						bacc += src[idx+2] * w;
+						aacc += src[idx+3] * w;
+						idx += 4;
+					}
+					idx = base+(i*4);
+					dst[idx  ] = blurvalue(racc, wsum, src, idx  , 4, -radius, radius, gk, radius);
+					dst[idx+1] = blurvalue(gacc, wsum, src, idx+1, 4, -radius, radius, gk, radius);
+					dst[idx+2] = blurvalue(bacc, wsum, src, idx+2, 4, -radius, radius, gk, radius);
+					dst[idx+3] = blurvalue(aacc, wsum, src, idx+3, 4, -radius, radius, gk, radius);
 				}
+				if(i>=width){ break; }
 			}
-		}// End of Selective blur
-
-		return imgd2;
-
-	}// End of blur()
+			// edge columns: only the pixels inside are weighted
+			racc = 0; gacc = 0; bacc = 0; aacc = 0; wacc = 0;
+			kfrom = Math.max(-radius, firstcol-i); kto = Math.min(radius, width-1-i);
+			for(k=kfrom; k<=kto; k++){
+				idx = base+((i+k)*4); w = kernel[k+radius];
+				racc += src[idx  ] * w;
+				gacc += src[idx+1] * w;
+				bacc += src[idx+2] * w;
+				aacc += src[idx+3] * w;
+				wacc += w;
+			}
+			idx = base+(i*4);
+			dst[idx  ] = blurvalue(racc, wacc, src, idx  , 4, kfrom, kto, gk, radius);
+			dst[idx+1] = blurvalue(gacc, wacc, src, idx+1, 4, kfrom, kto, gk, radius);
+			dst[idx+2] = blurvalue(bacc, wacc, src, idx+2, 4, kfrom, kto, gk, radius);
+			dst[idx+3] = blurvalue(aacc, wacc, src, idx+3, 4, kfrom, kto, gk, radius);
+		}
+	}// End of blurrow()
+
+
+	// Vertical blur of row j from the horizontally blurred half, rows firstrow ... height-1 are used, and the selective step:
+	// if the difference of the blurred and the original pixel is more than delta, the original pixel is kept.
+	// acc is a width*4 temporary array.
+	static void blurcolumns (byte [] orig, byte [] half, byte [] dst, int [] acc, int j, int width, int height, int firstrow, int [] kernel, double [] gk, int radius, int delta){
+		int x, k, w, wacc = 0, base, rowlen = width*4;
+		int kfrom = Math.max(-radius, firstrow-j), kto = Math.min(radius, height-1-j);
+		Arrays.fill(acc, 0);
+		// weighted rows, these are the same for the whole row
+		for(k=kfrom; k<=kto; k++){
+			w = kernel[k+radius]; wacc += w; base = (j+k)*rowlen;
+			for(x=0; x<rowlen; x++){ acc[x] += half[base+x] * w; }
+		}
+		base = j*rowlen;
+		int idx;
+		byte r, g, b, a;
+		for(x=0; x<rowlen; x+=4){
+			idx = base+x;
+			r = blurvalue(acc[x  ], wacc, half, idx  , rowlen, kfrom, kto, gk, radius);
+			g = blurvalue(acc[x+1], wacc, half, idx+1, rowlen, kfrom, kto, gk, radius);
+			b = blurvalue(acc[x+2], wacc, half, idx+2, rowlen, kfrom, kto, gk, radius);
+			a = blurvalue(acc[x+3], wacc, half, idx+3, rowlen, kfrom, kto, gk, radius);
+			if( (Math.abs(r-orig[idx]) + Math.abs(g-orig[idx+1]) + Math.abs(b-orig[idx+2]) + Math.abs(a-orig[idx+3])) > delta ){
+				dst[idx  ] = orig[idx  ];
+				dst[idx+1] = orig[idx+1];
+				dst[idx+2] = orig[idx+2];
+				dst[idx+3] = orig[idx+3];
+			}else{
+				dst[idx  ] = r;
+				dst[idx+1] = g;
+				dst[idx+2] = b;
+				dst[idx+3] = a;
+			}
+		}
+	}// End of blurcolumns()
+
+
+	// floor(acc/wacc) as a byte. acc/wacc is exact, so it's the same as with doubles, except if it's an integer: the double
+	// sums can be a bit less than that, these are summed again like before, so the result is the same as the double blur.
+	// The values of the pixels kfrom ... kto are at src[idx+(k*step)]. Same values with the whole kernel (flat areas, where
+	// this is the most frequent) are looked up in gksflat.
+	static byte blurvalue (int acc, int wacc, byte [] src, int idx, int step, int kfrom, int kto, double [] gk, int radius){
+		int k;
+		if(wacc!=0){ k = Math.floorDiv(acc, wacc); if((k*wacc)!=acc){ return (byte) k; } }
+		if( (kfrom==-radius) && (kto==radius) ){
+			byte v = src[idx];
+			for(k=kfrom; k<=kto; k++){ if(src[idx+(k*step)]!=v){ break; } }
+			if(k>kto){ return gksflat[radius-1][v+128]; }
+		}
+		double vacc = 0, dwacc = 0;
+		for(k=kfrom; k<=kto; k++){ vacc += src[idx+(k*step)] * gk[k+radius]; dwacc += gk[k+radius]; }
+		// without pixels (a 1 pixel wide image) this is 0/0 = NaN, which is 0 as a byte
+		return (byte) Math.floor(vacc / dwacc);
+	}// End of blurvalue()
 
 
 }// End of ImageTracer class
\ No newline at end of file
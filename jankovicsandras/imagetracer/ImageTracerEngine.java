@@ -0,0 +1,111 @@
+/*
+	ImageTracerEngine.java
+	Reusable, thread safe tracer with per thread scratch memory
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.concurrent.ForkJoinPool;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+
+// An engine has fixed options and can be shared by many threads. Every thread has its own ScratchArena, which is reused
+// by its next call, so the temporary arrays are not allocated again for images of similar size. The arena is trimmed after
+// a call if it retains more than maxretainedbytes.
+// Usage:
+//  ImageTracerEngine engine = new ImageTracerEngine.Builder().options(options).maxretainedbytes(64<<20).build();
+//  String svg = engine.tosvg(imgd);
+public class ImageTracerEngine{
+
+	public static final long DEFAULTMAXRETAINEDBYTES = 256L<<20;
+
+	public static class Builder{
+		TraceOptions options = TraceOptions.DEFAULT;
+		ForkJoinPool pool = null;
+		TraceListener listener = null;
+		Quantizer quantizer = null;
+		long maxretainedbytes = DEFAULTMAXRETAINEDBYTES;
+
+		// Missing options get the default values
+		public Builder options (HashMap<String,Float> moptions){ options = TraceOptions.frommap(moptions); return this; }
+		public Builder options (TraceOptions moptions){ options = moptions; return this; }
+		public Builder option (String key, float value){ options = options.with(key, value); return this; }
+		// The stages run on pool if it's not null, see ImageTracer.imagedataToTracebuffers()
+		public Builder pool (ForkJoinPool mpool){ pool = mpool; return this; }
+		public Builder listener (TraceListener mlistener){ listener = mlistener; return this; }
+		// Color quantization, if it's null then the one selected by the quantizer option
+		public Builder quantizer (Quantizer mquantizer){ quantizer = mquantizer; return this; }
+		// Quantizer.OCTREE or MEDIANCUT with bits per channel instead of Quantizer.DEFAULTBITS, see Quantizer.create()
+		public Builder quantizer (int mquantizer, int bits){ quantizer = Quantizer.create(mquantizer, bits); return this; }
+		// Per thread cap of the retained scratch memory
+		public Builder maxretainedbytes (long mmaxretainedbytes){ maxretainedbytes = mmaxretainedbytes; return this; }
+		public ImageTracerEngine build (){ return new ImageTracerEngine(this); }
+	}// End of Builder
+
+
+	public final TraceOptions options;
+	final ForkJoinPool pool;
+	final TraceListener listener;
+	public final Quantizer quantizer;
+	public final long maxretainedbytes;
+
+	final ThreadLocal<ScratchArena> arenas = new ThreadLocal<ScratchArena>(){
+		protected ScratchArena initialValue (){ return new ScratchArena(maxretainedbytes); }
+	};
+
+	ImageTracerEngine(Builder b){
+		options = b.options;
+		pool = b.pool; listener = b.listener; maxretainedbytes = b.maxretainedbytes;
+		quantizer = b.quantizer!=null ? b.quantizer : Quantizer.create(options);
+	}
+
+
+	// Tracing to an IndexedImage with pathbuffers, like ImageTracer.imagedataToTracebuffers()
+	public IndexedImage trace (ImageData imgd){ return trace(imgd, null); }
+	public IndexedImage trace (ImageData imgd, byte [][] palette){
+		ScratchArena arena = arenas.get();
+		try{
+			IndexedImage ii = ImageTracer.imagedataToTracebuffers(imgd, options, palette, pool, listener, arena, quantizer);
+			// the index array and the segments belong to the returned IndexedImage now
+			arena.handoff();
+			return ii;
+		}finally{ arena.trimtocap(); }
+	}// End of trace()
+
+
+	// Tracing to an SVG string, like ImageTracer.imagedataToSVG(). Every temporary array can be reused here.
+	public String tosvg (ImageData imgd){ return tosvg(imgd, null); }
+	public String tosvg (ImageData imgd, byte [][] palette){
+		ScratchArena arena = arenas.get();
+		try{
+			return ImageTracer.getsvgstring(ImageTracer.imagedataToTracebuffers(imgd, options, palette, pool, listener, arena, quantizer), options, listener);
+		}finally{ arena.trimtocap(); }
+	}// End of tosvg()
+
+
+	// Tracing and streaming the SVG to out, like ImageTracer.writesvg(). out is not closed, only flushed.
+	public void writesvg (ImageData imgd, Writer out) throws IOException { writesvg(imgd, null, out); }
+	public void writesvg (ImageData imgd, byte [][] palette, Writer out) throws IOException {
+		ScratchArena arena = arenas.get();
+		try{
+			IndexedImage ii = ImageTracer.imagedataToTracebuffers(imgd, options, palette, pool, listener, arena, quantizer);
+			ImageTracer.rendersvg(ii, options, arena.svgbuffer(), out, listener);
+			out.flush();
+		}finally{ arena.trimtocap(); }
+	}// End of writesvg()
+
+
+	// Scratch memory retained by the calling thread
+	public long retainedbytes (){ return arenas.get().retainedbytes(); }
+
+
+	// Releasing the scratch memory of the calling thread
+	public void trim (){ arenas.get().trim(); }
+
+}// End of ImageTracerEngine class
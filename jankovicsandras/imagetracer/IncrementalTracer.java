@@ -0,0 +1,137 @@
+/*
+	IncrementalTracer.java
+	Tracing animation frames and edited versions of an image again, only where the pixels changed
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+
+// The image is traced in tiles like in TiledTracer, the returned IndexedImage keeps the tiles and the joined paths.
+// retrace() uses the palette of the previous IndexedImage (without color quantization cycles) and compares the new
+// pixels with the previous ones: only the tiles with changed pixels (or changed pixels within the blur radius) are traced
+// again. The paths crossing tile borders are joined again only if they have a part in a changed tile, and the layers
+// without nodes in changed tiles are not changed at all. So the cost of a frame is the changed tiles and the paths
+// through them, and a comparison of the pixels.
+// The result is the same as ImageTracer.imagedataToTracebuffers() with the previous palette and colorquantcycles 1.
+// The PathBuffers of unchanged layers are shared by the IndexedImages, these must not be modified.
+// Usage:
+//  IndexedImage ii = IncrementalTracer.trace(frames[0], options, null, pool);
+//  for(int i=1; i<frames.length; i++){ ii = IncrementalTracer.retrace(ii, frames[i], options, pool); ... }
+public class IncrementalTracer{
+
+	public static int defaulttilesize = 64;
+
+	// Tiles and joined paths of a traced image, and a copy of its pixels
+	static class State{
+		TraceOptions options;
+		int tilesize;
+		byte [] pixels;
+		TiledTracer.Tile [] tiles;
+		TiledTracer.Stitched [] stitched;
+	}
+
+
+	// Tracing the first frame, like ImageTracer.imagedataToTracebuffers(). palette can be null, it's changed by the color
+	// quantization.
+	public static IndexedImage trace (ImageData imgd, TraceOptions options, byte [][] palette, ForkJoinPool pool){
+		return trace(imgd, options, palette, defaulttilesize, pool);
+	}
+	public static IndexedImage trace (ImageData imgd, TraceOptions options, byte [][] palette, int tilesize, ForkJoinPool pool){
+		TiledTracer.TileSource source = TiledTracer.source(imgd);
+		int ts = Math.max(1, tilesize);
+		try{
+			palette = TiledTracer.globalpalette(source, options, palette, ts, pool);
+		}catch(IOException e){ throw new UncheckedIOException(e); }// ImageData regions don't throw
+		return tracetiles(imgd, options, palette, ts, pool, null, null);
+	}// End of trace()
+
+
+	// Tracing imgd with the palette of previous. If previous was returned by trace() or retrace() with the same options and
+	// it has the same size as imgd, only the changed tiles are traced, else all of them. imgd can be the same ImageData as
+	// the previous frame with changed pixels, previous keeps a copy of its pixels.
+	public static IndexedImage retrace (IndexedImage previous, ImageData imgd, TraceOptions options, ForkJoinPool pool){
+		State state = previous.retracestate;
+		if( (state==null) || (previous.width!=imgd.width) || (previous.height!=imgd.height) ||
+				!Arrays.equals(state.options.values(), options.values()) ){
+			return tracetiles(imgd, options, previous.palette, state==null ? defaulttilesize : state.tilesize, pool, null, null);
+		}
+		return tracetiles(imgd, options, previous.palette, state.tilesize, pool, state, previous.pathbuffers);
+	}// End of retrace()
+
+
+	// Tracing the tiles with the final palette. If previous is not null, the tiles without changed pixels and the layers
+	// without nodes in changed tiles are copied from there.
+	static IndexedImage tracetiles (final ImageData imgd, final TraceOptions options, final byte [][] palette, final int ts,
+			ForkJoinPool pool, final State previous, final PathBuffer [] previouslayers){
+		final int w = imgd.width, h = imgd.height;
+		final TiledTracer.TileSource source = TiledTracer.source(imgd);
+		final int tcols = (w+ts)/ts, trows = (h+ts)/ts;
+		final TiledTracer.Tile [] tiles = new TiledTracer.Tile[tcols*trows];
+		final boolean [] clean = new boolean[tiles.length];
+		final int blurradius = options.blurradius<1 ? 0 : Math.min(5, (int)Math.floor(options.blurradius));
+
+		try{
+			TiledTracer.foreach(pool, tiles.length, new TiledTracer.Body(){ public void run(int t) throws IOException {
+				int nx0 = (t%tcols)*ts, ny0 = (t/tcols)*ts, nx1 = Math.min(nx0+ts, w+1), ny1 = Math.min(ny0+ts, h+1);
+				// the tile reads pixels nx0-1 ... nx1-1 and the blur reads blurradius more
+				if( (previous!=null) && !changed(previous.pixels, imgd.data, w,
+						Math.max(0, nx0-1-blurradius), Math.max(0, ny0-1-blurradius), Math.min(w, nx1+blurradius), Math.min(h, ny1+blurradius)) ){
+					tiles[t] = previous.tiles[t]; clean[t] = true;
+				}else{
+					tiles[t] = TiledTracer.tracetile(source, palette, options, nx0, ny0, nx1, ny1);
+				}
+			}});
+		}catch(IOException e){ throw new UncheckedIOException(e); }
+
+		// layers with nodes in a changed tile, before or now
+		final boolean [] changedlayers = new boolean[palette.length];
+		for(int t=0; t<tiles.length; t++){
+			if(!clean[t]){
+				for(int k=0; k<palette.length; k++){
+					if( tiles[t].haslayer[k] || ((previous!=null) && previous.tiles[t].haslayer[k]) ){ changedlayers[k] = true; }
+				}
+			}
+		}
+
+		final State state = new State();
+		state.options = options; state.tilesize = ts; state.pixels = imgd.data.clone(); state.tiles = tiles;
+		state.stitched = new TiledTracer.Stitched[palette.length];
+		final PathBuffer [] layers = new PathBuffer[palette.length];
+		try{
+			TiledTracer.foreach(pool, layers.length, new TiledTracer.Body(){ public void run(int k){
+				if( (previous!=null) && !changedlayers[k] ){
+					state.stitched[k] = previous.stitched[k]; layers[k] = previouslayers[k];
+				}else{
+					state.stitched[k] = TiledTracer.stitch(tiles, k, w, options, previous==null ? null : previous.stitched[k], previous==null ? null : clean);
+					layers[k] = TiledTracer.assemble(tiles, k, state.stitched[k], w);
+				}
+			}});
+		}catch(IOException e){ throw new UncheckedIOException(e); }
+
+		IndexedImage ii = new IndexedImage(w, h, palette);
+		ii.pathbuffers = layers;
+		ii.retracestate = state;
+		return ii;
+	}// End of tracetiles()
+
+
+	// Are the pixels x0 ... x1-1, y0 ... y1-1 different
+	static boolean changed (byte [] previous, byte [] data, int w, int x0, int y0, int x1, int y1){
+		for(int y=y0; y<y1; y++){
+			for(int i=((y*w)+x0)*4, end=((y*w)+x1)*4; i<end; i++){
+				if(previous[i]!=data[i]){ return true; }
+			}
+		}
+		return false;
+	}// End of changed()
+
+}// End of IncrementalTracer class
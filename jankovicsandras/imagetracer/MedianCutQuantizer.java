@@ -0,0 +1,167 @@
+/*
+	MedianCutQuantizer.java
+	Single pass median cut color quantization on an RGBA histogram
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.util.Arrays;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+
+// https://en.wikipedia.org/wiki/Median_cut
+// The pixels are counted in a histogram of bits bits per channel, with the channel sums of every used bin. Starting with
+// one box of all histogram colors, the box with the largest pixels * channel range is split at the pixel median of its
+// widest channel (alpha counts 4 times, like in closestcolor()), until there are numberofcolors boxes or no box can be
+// split. The palette is the average pixel color of the boxes. The used bins are sorted before the splitting, so the
+// palette doesn't depend on the order of the pixels.
+public class MedianCutQuantizer extends Quantizer.SinglePass{
+
+	public final int bits;// histogram bits per channel, 1 ... 6
+
+
+	public MedianCutQuantizer(){ this(Quantizer.DEFAULTBITS); }
+
+	public MedianCutQuantizer(int mbits){
+		if( (mbits<1) || (mbits>6) ){ throw new IllegalArgumentException("Median cut histogram bits must be 1 ... 6: "+mbits); }
+		bits = mbits;
+	}
+
+
+	public Accumulator accumulator (){ return new Histogram(bits); }
+
+
+	// Histogram of the added pixels
+	static class Histogram implements Accumulator{
+		final int bits, shift, mask;
+		// slot+1 of every used bin (0 is unused), and the bin, channel sums (of 128+data values) and pixel count of the slots
+		final int [] slots;
+		int [] bins = new int[256];
+		long [] sums = new long[256*5];
+		int used;
+
+		Histogram(int mbits){
+			bits = mbits; shift = 8-bits; mask = (1<<bits)-1;
+			slots = new int[1<<(bits*4)];
+		}
+
+
+		public void accumulate (ImageData region){
+			byte [] data = region.data;
+			int s = -1, previous = 0, rgba;
+			// a run of the same color is added to the same slot
+			for(int idx=0, end=region.width*region.height*4; idx<end; idx+=4){
+				rgba = ColorCache.packrgba(data, idx);
+				if( (s<0) || (rgba!=previous) ){ s = slot(bin(data, idx, shift)); previous = rgba; }
+				sums[s*5  ] += 128+data[idx  ];
+				sums[s*5+1] += 128+data[idx+1];
+				sums[s*5+2] += 128+data[idx+2];
+				sums[s*5+3] += 128+data[idx+3];
+				sums[s*5+4]++;
+			}
+		}// End of accumulate()
+
+
+		// The slot of a bin, a new one if the bin is unused
+		int slot (int bin){
+			int s = slots[bin]-1;
+			if(s<0){
+				if(used==bins.length){ bins = Arrays.copyOf(bins, used*2); sums = Arrays.copyOf(sums, used*10); }
+				s = used++;
+				bins[s] = bin; slots[bin] = s+1;
+			}
+			return s;
+		}// End of slot()
+
+
+		// Pixels in a bin
+		long count (int bin){ return sums[((slots[bin]-1)*5)+4]; }
+
+
+		public byte [][] finish (int numberofcolors){
+			int m = used;
+			if(m==0){ return new byte[0][]; }
+			int [] colors = Arrays.copyOf(bins, m);
+			Arrays.sort(colors);
+
+			// boxes: colors from ... to-1, pixel count, widest channel and its weighted range
+			int [] from = new int[numberofcolors], to = new int[numberofcolors], channel = new int[numberofcolors];
+			long [] score = new long[numberofcolors];
+			int boxes = 1;
+			from[0] = 0; to[0] = m;
+			measure(colors, from, to, channel, score, 0);
+			long [] keys = new long[m];
+
+			while(boxes<numberofcolors){
+				// the box with the largest score
+				int b = -1;
+				for(int i=0; i<boxes; i++){ if( (score[i]>0) && ((b<0) || (score[i]>score[b])) ){ b = i; } }
+				if(b<0){ break; }
+
+				// sorting the colors of the box by the channel
+				int ch = channel[b], chshift = (3-ch)*bits;
+				for(int i=from[b]; i<to[b]; i++){ keys[i] = ((long)((colors[i]>>chshift)&mask)<<32)|colors[i]; }
+				Arrays.sort(keys, from[b], to[b]);
+				long boxpixels = 0;
+				for(int i=from[b]; i<to[b]; i++){ colors[i] = (int)keys[i]; boxpixels += count(colors[i]); }
+
+				// splitting at the pixel median, both boxes get at least one color
+				long half = 0; int split = from[b]+1;
+				for(int i=from[b]; i<to[b]-1; i++){
+					half += count(colors[i]);
+					split = i+1;
+					if(half*2>=boxpixels){ break; }
+				}
+				from[boxes] = split; to[boxes] = to[b]; to[b] = split;
+				measure(colors, from, to, channel, score, b);
+				measure(colors, from, to, channel, score, boxes);
+				boxes++;
+			}
+
+			// average colors of the boxes
+			byte [][] palette = new byte[boxes][];
+			long [] box = new long[5];
+			for(int b=0; b<boxes; b++){
+				Arrays.fill(box, 0);
+				for(int i=from[b]; i<to[b]; i++){
+					int s = (slots[colors[i]]-1)*5;
+					for(int c=0; c<5; c++){ box[c] += sums[s+c]; }
+				}
+				palette[b] = Quantizer.averagecolor(box[0], box[1], box[2], box[3], box[4]);
+			}
+			return palette;
+		}// End of finish()
+
+
+		// Widest channel of box b and its score: pixels * weighted range, 0 if the box has only one color
+		void measure (int [] colors, int [] from, int [] to, int [] channel, long [] score, int b){
+			int [] min = {mask,mask,mask,mask}, max = {0,0,0,0};
+			long pixels = 0;
+			for(int i=from[b]; i<to[b]; i++){
+				for(int ch=0; ch<4; ch++){
+					int v = (colors[i]>>((3-ch)*bits))&mask;
+					if(v<min[ch]){ min[ch] = v; } if(v>max[ch]){ max[ch] = v; }
+				}
+				pixels += count(colors[i]);
+			}
+			int best = 0, bestrange = -1;
+			for(int ch=0; ch<4; ch++){
+				int range = (max[ch]-min[ch])*(ch==3 ? 4 : 1);
+				if(range>bestrange){ bestrange = range; best = ch; }
+			}
+			channel[b] = best;
+			score[b] = (to[b]-from[b])<2 ? 0 : pixels*Math.max(1, bestrange);
+		}// End of measure()
+
+	}// End of Histogram
+
+
+	// Histogram bin of the pixel at data[idx]: the top bits of R, G, B and A
+	static int bin (byte [] data, int idx, int shift){
+		return ((((data[idx]+128)>>shift)<<(3*(8-shift))) | (((data[idx+1]+128)>>shift)<<(2*(8-shift)))
+				| (((data[idx+2]+128)>>shift)<<(8-shift)) | ((data[idx+3]+128)>>shift));
+	}
+
+}// End of MedianCutQuantizer class
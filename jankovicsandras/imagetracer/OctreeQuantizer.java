@@ -0,0 +1,167 @@
+/*
+	OctreeQuantizer.java
+	Single pass octree color quantization, extended to RGBA
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.util.Arrays;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+
+// https://en.wikipedia.org/wiki/Octree#Color_quantization
+// Every pixel is added to a tree of depth levels: a node has 16 children, by the next bit of R, G, B and A. Then the
+// nodes with the fewest pixels are merged into their parent, from the deepest level up, while there are more leaves than
+// numberofcolors. If merging all children of a node would leave fewer leaves than numberofcolors, only its smallest
+// children are merged into it, so the palette has numberofcolors colors (if the image has so many). The palette is the
+// average color of the leaves. Nodes are stored in arrays, not objects. The nodes are ordered by their child indexes,
+// not by the order they were added, so the palette doesn't depend on the order of the pixels.
+public class OctreeQuantizer extends Quantizer.SinglePass{
+
+	public final int depth;// bits per channel, 1 ... 8
+
+
+	public OctreeQuantizer(){ this(Quantizer.DEFAULTBITS); }
+
+	public OctreeQuantizer(int mdepth){
+		if( (mdepth<1) || (mdepth>8) ){ throw new IllegalArgumentException("Octree depth must be 1 ... 8: "+mdepth); }
+		depth = mdepth;
+	}
+
+
+	public Accumulator accumulator (){ return new Tree(depth); }
+
+
+	// The tree of the added pixels
+	static class Tree implements Accumulator{
+		final int depth;
+		// tree nodes: children (0 is none, the root is node 0), channel sums (of 128+data values) and pixel count, parent,
+		// level, leaf flag
+		int [] children = new int[16*1024];
+		long [] sums = new long[5*1024];
+		int [] parents = new int[1024], levels = new int[1024];
+		boolean [] leaves = new boolean[1024];
+		int nodecount = 1;
+
+		Tree(int mdepth){ depth = mdepth; }
+
+
+		public void accumulate (ImageData region){
+			byte [] data = region.data;
+			int leaf = -1, previous = 0, rgba;
+			// a run of the same color is added to the same leaf
+			for(int idx=0, end=region.width*region.height*4; idx<end; idx+=4){
+				rgba = ColorCache.packrgba(data, idx);
+				if( (leaf<0) || (rgba!=previous) ){ leaf = leaf(data, idx); previous = rgba; }
+				sums[leaf*5  ] += 128+data[idx  ];
+				sums[leaf*5+1] += 128+data[idx+1];
+				sums[leaf*5+2] += 128+data[idx+2];
+				sums[leaf*5+3] += 128+data[idx+3];
+				sums[leaf*5+4]++;
+			}
+		}// End of accumulate()
+
+
+		public byte [][] finish (int numberofcolors){
+			// the nodes ordered by child indexes, every node is before its children
+			int [] order = new int[nodecount], stack = new int[nodecount];
+			int o = 0, sp = 0;
+			stack[sp++] = 0;
+			while(sp>0){
+				int n = stack[--sp];
+				order[o++] = n;
+				for(int c=15; c>=0; c--){ if(children[n*16+c]!=0){ stack[sp++] = children[n*16+c]; } }
+			}
+
+			// sums of the inner nodes
+			for(int i=nodecount-1; i>0; i--){
+				int n = order[i];
+				for(int c=0; c<5; c++){ sums[parents[n]*5+c] += sums[n*5+c]; }
+			}
+
+			// merging the smallest nodes of the deepest inner level, then the next level. The children of a level are all
+			// leaves when it's merged: the deeper level was merged completely, else there are few enough leaves.
+			int leafcount = 0;
+			for(int n=0; n<nodecount; n++){ if(leaves[n]){ leafcount++; } }
+			long [] keys = new long[nodecount]; int [] nodes = new int[nodecount];
+			for(int level=depth-1; (level>=0) && (leafcount>numberofcolors); level--){
+				int k = 0;
+				for(int i=0; i<nodecount; i++){
+					int n = order[i];
+					if( (levels[n]==level) && !leaves[n] ){ keys[k] = sums[n*5+4]; nodes[k] = n; k++; }
+				}
+				RadixSort.sort(keys, nodes, k);
+				for(int i=0; (i<k) && (leafcount>numberofcolors); i++){ leafcount -= merge(nodes[i], leafcount-numberofcolors); }
+			}
+
+			// palette: the leaves in order
+			byte [][] palette = new byte[leafcount][];
+			int p = 0;
+			for(int i=0; i<nodecount; i++){
+				int n = order[i];
+				if(leaves[n]){ palette[p++] = Quantizer.averagecolor(sums[n*5], sums[n*5+1], sums[n*5+2], sums[n*5+3], sums[n*5+4]); }
+			}
+			return palette;
+		}// End of finish()
+
+
+		// Merging the children of node n into it. If that would remove more than excess leaves, only the excess+1 children
+		// with the fewest pixels are merged: n becomes a leaf with their pixels, next to its other children. Returns the
+		// number of removed leaves.
+		int merge (int n, int excess){
+			int [] merged = new int[16];
+			int count = 0;
+			for(int c=0; c<16; c++){ if(children[n*16+c]!=0){ merged[count++] = c; } }
+			if(count>excess+1){
+				// insertion sort by pixel count, a tie keeps the child index order
+				for(int i=1; i<count; i++){
+					int c = merged[i], j = i;
+					while( (j>0) && (sums[children[n*16+merged[j-1]]*5+4]>sums[children[n*16+c]*5+4]) ){ merged[j] = merged[j-1]; j--; }
+					merged[j] = c;
+				}
+				count = excess+1;
+				for(int c=0; c<5; c++){ sums[n*5+c] = 0; }
+				for(int i=0; i<count; i++){
+					int child = children[n*16+merged[i]];
+					for(int c=0; c<5; c++){ sums[n*5+c] += sums[child*5+c]; }
+				}
+			}
+			for(int i=0; i<count; i++){ leaves[children[n*16+merged[i]]] = false; children[n*16+merged[i]] = 0; }
+			leaves[n] = true;
+			return count-1;
+		}// End of merge()
+
+
+		// The leaf of the color at data[idx], created if it's missing
+		int leaf (byte [] data, int idx){
+			int n = 0, r = 128+data[idx], g = 128+data[idx+1], b = 128+data[idx+2], a = 128+data[idx+3];
+			for(int level=0; level<depth; level++){
+				int bit = 7-level;
+				int c = (((r>>bit)&1)<<3)|(((g>>bit)&1)<<2)|(((b>>bit)&1)<<1)|((a>>bit)&1);
+				int child = children[n*16+c];
+				if(child==0){
+					child = newnode(n, level+1);
+					children[n*16+c] = child;
+				}
+				n = child;
+			}
+			leaves[n] = true;
+			return n;
+		}// End of leaf()
+
+
+		int newnode (int parent, int level){
+			if(nodecount==levels.length){
+				int size = levels.length*2;
+				children = Arrays.copyOf(children, size*16); sums = Arrays.copyOf(sums, size*5);
+				parents = Arrays.copyOf(parents, size); levels = Arrays.copyOf(levels, size); leaves = Arrays.copyOf(leaves, size);
+			}
+			parents[nodecount] = parent; levels[nodecount] = level;
+			return nodecount++;
+		}// End of newnode()
+
+	}// End of Tree
+
+}// End of OctreeQuantizer class
@@ -0,0 +1,61 @@
+/*
+	PaletteSearch.java
+	Closest palette color search for ImageTracer.colorquantization(), with an optional SIMD version
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+// closest() returns the same palette index as ImageTracer.closestcolor(): the first color with the smallest
+// |dr|+|dg|+|db|+4*|da| distance below 1024, else 0.
+// create() returns the jdk.incubator.vector version (java16/VectorPaletteSearch.java) for palettes of at least
+// vectorminpalette colors if it's compiled (the java16 Maven profile on JDK 16+) and the JVM runs with
+// --add-modules jdk.incubator.vector. Else, and if usevector is false, it's the scalar closestcolor().
+// The vector version copies the palette, so a new PaletteSearch is needed after the palette changes.
+public abstract class PaletteSearch{
+
+	public static boolean usevector = true;
+	public static int vectorminpalette = 16;
+
+	static final String VECTORCLASS = "jankovicsandras.imagetracer.java16.VectorPaletteSearch";
+
+	// Creating a vector search for a palette, null if it's not available
+	public interface Factory{ PaletteSearch create(byte [][] palette); }
+
+	static final Factory vectorfactory = loadvectorfactory();
+
+	// The vector class needs JDK 16+ and the incubator module, any error means it's not available
+	static Factory loadvectorfactory (){
+		try{
+			Factory factory = (Factory) Class.forName(VECTORCLASS).getField("FACTORY").get(null);
+			// trying it once, the Vector API classes are loaded here
+			factory.create(new byte[][]{{0,0,0,0}}).closest(new byte[4], 0);
+			return factory;
+		}catch(Throwable e){
+			return null;
+		}
+	}// End of loadvectorfactory()
+
+
+	// Is the SIMD version available in this JVM
+	public static boolean vectoravailable (){ return vectorfactory!=null; }
+
+
+	public static PaletteSearch create (byte [][] palette){
+		if( usevector && (vectorfactory!=null) && (palette.length>=vectorminpalette) ){ return vectorfactory.create(palette); }
+		return new Scalar(palette);
+	}// End of create()
+
+
+	// Palette index of the closest color to the pixel at data[idx] ... data[idx+3]
+	public abstract int closest (byte [] data, int idx);
+
+
+	static class Scalar extends PaletteSearch{
+		final byte [][] palette;
+		Scalar(byte [][] mpalette){ palette = mpalette; }
+		public int closest (byte [] data, int idx){ return ImageTracer.closestcolor(palette, data, idx); }
+	}// End of Scalar
+
+}// End of PaletteSearch class
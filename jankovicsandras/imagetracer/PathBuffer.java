@@ -0,0 +1,152 @@
+/*
+	PathBuffer.java
+	Primitive storage for paths, internodes and traced segments
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// Many paths of fixed size records in one int[] or double[] array, without boxing.
+// Path p has the records offsets[p] ... offsets[p+1]-1, field f of record r is at ints/doubles[(r*stride)+f]
+// Record layouts:
+//  pathscan() path points: ints, stride 3 : x, y, edge node type
+//  internodes(): doubles, stride 3 : x, y, direction
+//  tracepath() segments: doubles, stride 7 : type (1.0 line, 2.0 quadratic spline), x1, y1, x2, y2, x3, y3
+public class PathBuffer{
+
+	public final int stride;
+	public int [] ints;
+	public double [] doubles;
+	public int [] offsets;
+	public int pathcount = 0, records = 0;
+
+	public PathBuffer(int mstride, boolean intbuffer){ this(mstride, intbuffer, 64); }
+
+	public PathBuffer(int mstride, boolean intbuffer, int initialrecords){
+		stride = mstride;
+		if(intbuffer){ ints = new int[Math.max(1,initialrecords)*stride]; }else{ doubles = new double[Math.max(1,initialrecords)*stride]; }
+		offsets = new int[16];
+	}
+
+
+	// Adding a new record to the current path, returns the array index of its first field
+	public int newrecord (){
+		ensurecapacity(records+1);
+		return (records++)*stride;
+	}
+
+
+	// Growing the data array to hold at least n records
+	public void ensurecapacity (int n){
+		if(ints!=null){
+			if(n*stride>ints.length){ ints = Arrays.copyOf(ints, Math.max(n*stride, ints.length*2)); }
+		}else{
+			if(n*stride>doubles.length){ doubles = Arrays.copyOf(doubles, Math.max(n*stride, doubles.length*2)); }
+		}
+	}// End of ensurecapacity()
+
+
+	// Closing the current path: the records since the last endpath() form a new path
+	public void endpath (){
+		if(pathcount+2>offsets.length){ offsets = Arrays.copyOf(offsets, offsets.length*2); }
+		pathcount++; offsets[pathcount] = records;
+	}
+
+
+	// Dropping the records of the current (not yet closed) path
+	public void discardpath (){ records = offsets[pathcount]; }
+
+
+	// Records of the current (not yet closed) path
+	public int currentlength (){ return records-offsets[pathcount]; }
+
+
+	public int pathstart (int p){ return offsets[p]; }
+
+
+	public int pathlength (int p){ return offsets[p+1]-offsets[p]; }
+
+
+	public void clear (){ pathcount = 0; records = 0; }
+
+
+	// Appending all paths of other, which must have the same stride and type
+	public void append (PathBuffer other){
+		for(int p=0; p<other.pathcount; p++){ appendpath(other, p); }
+	}// End of append()
+
+
+	// Appending path p of other as a new path
+	public void appendpath (PathBuffer other, int p){
+		int len = other.pathlength(p), from = other.offsets[p]*stride;
+		ensurecapacity(records+len);
+		if(ints!=null){
+			System.arraycopy(other.ints, from, ints, records*stride, len*stride);
+		}else{
+			System.arraycopy(other.doubles, from, doubles, records*stride, len*stride);
+		}
+		records += len;
+		endpath();
+	}// End of appendpath()
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Conversion to and from the ArrayList tracedata
+	//
+	////////////////////////////////////////////////////////////
+
+	// int buffer to pathscan() type paths
+	public ArrayList<ArrayList<Integer[]>> tointegerlists (){
+		ArrayList<ArrayList<Integer[]>> paths = new ArrayList<ArrayList<Integer[]>>(pathcount);
+		for(int p=0; p<pathcount; p++){
+			ArrayList<Integer[]> path = new ArrayList<Integer[]>(pathlength(p));
+			for(int r=offsets[p]; r<offsets[p+1]; r++){
+				Integer[] rec = new Integer[stride];
+				for(int f=0; f<stride; f++){ rec[f] = ints[(r*stride)+f]; }
+				path.add(rec);
+			}
+			paths.add(path);
+		}
+		return paths;
+	}// End of tointegerlists()
+
+
+	// double buffer to internodes() or tracepath() type paths
+	public ArrayList<ArrayList<Double[]>> todoublelists (){
+		ArrayList<ArrayList<Double[]>> paths = new ArrayList<ArrayList<Double[]>>(pathcount);
+		for(int p=0; p<pathcount; p++){ paths.add(todoublelist(p)); }
+		return paths;
+	}
+
+
+	public ArrayList<Double[]> todoublelist (int p){
+		ArrayList<Double[]> path = new ArrayList<Double[]>(pathlength(p));
+		for(int r=offsets[p]; r<offsets[p+1]; r++){
+			Double[] rec = new Double[stride];
+			for(int f=0; f<stride; f++){ rec[f] = doubles[(r*stride)+f]; }
+			path.add(rec);
+		}
+		return path;
+	}// End of todoublelist()
+
+
+	// Creating a double buffer from internodes() or tracepath() type paths
+	public static PathBuffer fromdoublelists (ArrayList<ArrayList<Double[]>> paths, int stride){
+		int n = 0; for(ArrayList<Double[]> path : paths){ n += path.size(); }
+		PathBuffer pb = new PathBuffer(stride, false, n);
+		for(ArrayList<Double[]> path : paths){
+			for(Double[] rec : path){
+				int idx = pb.newrecord();
+				for(int f=0; f<stride; f++){ pb.doubles[idx+f] = rec[f]; }
+			}
+			pb.endpath();
+		}
+		return pb;
+	}// End of fromdoublelists()
+
+}// End of PathBuffer class
@@ -0,0 +1,211 @@
+/*
+	PngRowReader.java
+	Decoding the rows of a PNG file in order, a few rows at a time
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+
+// ImageIO decodes a region of a PNG from the first row, so reading an image in strips would decode its top again for
+// every strip. This reader keeps the inflater and the previous row between the next() calls, the file is decoded once,
+// from the top. The samples are written to the image type of ImageIO's PNG reader (the first of getImageTypes()), so
+// ImageTracer.loadImageData() converts them to the same pixels as reading the region with ImageIO. open() returns null
+// for the PNGs where ImageIO changes the samples (interlaced, other sample sizes), these are read in regions.
+class PngRowReader implements Closeable{
+
+	static final long SIGNATURE = 0x89504E470D0A1A0AL;
+	static final int IHDR = 0x49484452, TRNS = 0x74524E53, IDAT = 0x49444154;
+
+	final DataInputStream file;
+	final ImageTypeSpecifier type;
+	int width, height, bitdepth, colortype, interlace, channels, bands, bpp, rowbytes;
+	// tRNS color of gray and RGB images (samples), null if there's none
+	int [] transparent;
+	final Inflater inflater = new Inflater();
+	DataInputStream idat;
+	int chunkleft;// bytes left of the current IDAT chunk
+	boolean ended;
+	// the current and the previous row, the first byte is the filter type
+	byte [] row, previousrow;
+	int [] samples;
+	int y;// the next row
+
+
+	// A reader for the PNG file of reader (an ImageIO reader with its input set), or null if it's not a PNG which can
+	// be read this way
+	static PngRowReader open (File file, ImageReader reader) throws IOException {
+		if(!"png".equalsIgnoreCase(reader.getFormatName())){ return null; }
+		ImageTypeSpecifier type = reader.getImageTypes(0).next();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1<<16));
+		PngRowReader rows;
+		try{
+			rows = new PngRowReader(in, type);
+		}catch(IOException e){ in.close(); throw e; }
+		if(!rows.supported()){ rows.close(); return null; }
+		return rows;
+	}// End of open()
+
+
+	// Reading the chunks until the first IDAT
+	PngRowReader (DataInputStream mfile, ImageTypeSpecifier mtype) throws IOException {
+		file = mfile; type = mtype;
+		if(file.readLong()!=SIGNATURE){ throw new IOException("Not a PNG file"); }
+		while(true){
+			int length = file.readInt(), chunk = file.readInt();
+			if(chunk==IDAT){ chunkleft = length; break; }
+			if(chunk==IHDR){
+				width = file.readInt(); height = file.readInt(); bitdepth = file.readUnsignedByte(); colortype = file.readUnsignedByte();
+				file.readUnsignedByte(); file.readUnsignedByte(); interlace = file.readUnsignedByte();
+				skipbytes(length-13);
+			}else if( (chunk==TRNS) && ((colortype==0) || (colortype==2)) ){
+				transparent = new int[colortype==0 ? 1 : 3];
+				for(int c=0; c<transparent.length; c++){ transparent[c] = file.readUnsignedShort(); }
+				skipbytes(length-(transparent.length*2));
+			}else{
+				skipbytes(length);
+			}
+			skipbytes(4);// CRC
+		}
+		switch(colortype){
+			case 0: channels = 1; break;// gray
+			case 2: channels = 3; break;// RGB
+			case 3: channels = 1; break;// palette
+			case 4: channels = 2; break;// gray, alpha
+			case 6: channels = 4; break;// RGBA
+			default: channels = 0;
+		}
+		bands = type.getSampleModel().getNumBands();
+		bpp = Math.max(1, (channels*bitdepth)/8);
+		rowbytes = (int)((((long)width*channels*bitdepth)+7)/8);
+		row = new byte[rowbytes+1]; previousrow = new byte[rowbytes+1];
+		samples = new int[width*bands];
+		idat = new DataInputStream(new InflaterInputStream(new IdatStream(), inflater, 1<<16));
+	}// End of constructor
+
+
+	// The samples of the PNG are the samples of the image type: same bands (or an alpha band from tRNS) and sample sizes
+	boolean supported (){
+		if( (interlace!=0) || (channels==0) || (width<1) || (height<1) ){ return false; }
+		SampleModel sm = type.getSampleModel();
+		boolean alpha = (bands==(channels+1)) && (transparent!=null) && (bitdepth>=8);
+		if( (bands!=channels) && !alpha ){ return false; }
+		for(int b=0; b<bands; b++){ if(sm.getSampleSize(b)!=bitdepth){ return false; } }
+		return true;
+	}// End of supported()
+
+
+	// The next n rows (n>0) as an image of width x n pixels
+	BufferedImage next (int n) throws IOException {
+		BufferedImage img = type.createBufferedImage(width, n);
+		WritableRaster raster = img.getRaster();
+		int max = (1<<bitdepth)-1;
+		for(int j=0; j<n; j++){
+			nextrow();
+			for(int x=0; x<width; x++){
+				for(int c=0; c<channels; c++){ samples[(x*bands)+c] = sample((x*channels)+c); }
+				// ImageIO adds an alpha band to gray and RGB images with a tRNS color
+				if(bands>channels){
+					boolean same = true;
+					for(int c=0; c<channels; c++){ same = same && (samples[(x*bands)+c]==transparent[c]); }
+					samples[(x*bands)+channels] = same ? 0 : max;
+				}
+			}
+			raster.setPixels(0, j, width, 1, samples);
+		}
+		return img;
+	}// End of next()
+
+
+	// Skipping n rows
+	void skiprows (int n) throws IOException {
+		for(int j=0; j<n; j++){ nextrow(); }
+	}
+
+
+	// Sample i of the current row
+	int sample (int i){
+		switch(bitdepth){
+			case 8: return row[i+1]&255;
+			case 16: return ((row[(i*2)+1]&255)<<8)|(row[(i*2)+2]&255);
+			default:
+				int bit = i*bitdepth;
+				return ((row[(bit>>3)+1]&255)>>(8-bitdepth-(bit&7)))&((1<<bitdepth)-1);
+		}
+	}// End of sample()
+
+
+	// Inflating and unfiltering the next row
+	void nextrow () throws IOException {
+		if(y>=height){ throw new EOFException("No more rows in the PNG file"); }
+		byte [] t = previousrow; previousrow = row; row = t;
+		idat.readFully(row);
+		int filter = row[0], a, b, c, p, pa, pb, pc;
+		for(int i=1; i<=rowbytes; i++){
+			a = i>bpp ? row[i-bpp]&255 : 0; b = previousrow[i]&255; c = i>bpp ? previousrow[i-bpp]&255 : 0;
+			switch(filter){
+				case 0: break;
+				case 1: row[i] += a; break;
+				case 2: row[i] += b; break;
+				case 3: row[i] += (a+b)>>1; break;
+				case 4:
+					p = (a+b)-c; pa = Math.abs(p-a); pb = Math.abs(p-b); pc = Math.abs(p-c);
+					row[i] += ( (pa<=pb) && (pa<=pc) ) ? a : (pb<=pc ? b : c);
+					break;
+				default: throw new IOException("Unknown PNG filter type: "+filter);
+			}
+		}
+		y++;
+	}// End of nextrow()
+
+
+	void skipbytes (int n) throws IOException {
+		if(file.skipBytes(n)!=n){ throw new EOFException(); }
+	}
+
+
+	public void close () throws IOException {
+		inflater.end();
+		file.close();
+	}
+
+
+	// The data of the IDAT chunks
+	class IdatStream extends InputStream{
+		public int read () throws IOException {
+			byte [] b = new byte[1];
+			return read(b, 0, 1)<0 ? -1 : b[0]&255;
+		}
+		public int read (byte [] b, int off, int len) throws IOException {
+			while(chunkleft==0){
+				if(ended){ return -1; }
+				skipbytes(4);// CRC
+				int length = file.readInt(), chunk = file.readInt();
+				if(chunk!=IDAT){ ended = true; return -1; }
+				chunkleft = length;
+			}
+			int n = file.read(b, off, Math.min(len, chunkleft));
+			if(n<0){ throw new EOFException(); }
+			chunkleft -= n;
+			return n;
+		}
+	}// End of IdatStream
+
+}// End of PngRowReader class
@@ -0,0 +1,124 @@
+/*
+	Quantizer.java
+	Color quantization strategies: the k-means of ImageTracer.colorquantization() and single pass palette engines
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.util.concurrent.ForkJoinPool;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+
+// A Quantizer returns the IndexedImage of the first tracing step: array with the palette index of every pixel (and the
+// -1 boundary), palette, colorcounts and colorbounds. The quantizer option selects the one of the tracing functions:
+//  KMEANS (0): ImageTracer.colorquantization(), the default, colorquantcycles cycles, random colors if not seeded
+//  OCTREE (1): OctreeQuantizer, one pass
+//  MEDIANCUT (2): MedianCutQuantizer, one pass and a histogram
+// The single pass quantizers are deterministic. They make a palette of numberofcolors colors (fewer if the image has fewer
+// colors) from the blurred pixels, then every pixel gets the closest palette color like in the last k-means cycle. If a
+// palette is given, it's used without changes. Other quantizers can be used with ImageTracerEngine.Builder.quantizer().
+public abstract class Quantizer{
+
+	// Values of the quantizer option
+	public static final int KMEANS = 0, OCTREE = 1, MEDIANCUT = 2;
+
+	// Bits per channel of the octree and the median cut histogram
+	public static final int DEFAULTBITS = 5;
+
+	public static final Quantizer KMEANSQUANTIZER = new KMeans();
+	public static final Quantizer OCTREEQUANTIZER = new OctreeQuantizer(DEFAULTBITS);
+	public static final Quantizer MEDIANCUTQUANTIZER = new MedianCutQuantizer(DEFAULTBITS);
+
+
+	// The quantizer selected by options.quantizer
+	public static Quantizer create (TraceOptions options){
+		return create((int)Math.floor(options.quantizer), DEFAULTBITS);
+	}// End of create()
+	// bits: the OctreeQuantizer depth or the MedianCutQuantizer histogram bits, not used by k-means
+	public static Quantizer create (int quantizer, int bits){
+		switch(quantizer){
+			case OCTREE: return bits==DEFAULTBITS ? OCTREEQUANTIZER : new OctreeQuantizer(bits);
+			case MEDIANCUT: return bits==DEFAULTBITS ? MEDIANCUTQUANTIZER : new MedianCutQuantizer(bits);
+			default: return KMEANSQUANTIZER;
+		}
+	}// End of create()
+
+
+	// palette can be null, pool can be null
+	public abstract IndexedImage quantize (ImageData imgd, byte [][] palette, TraceOptions options, ForkJoinPool pool);
+
+
+	// Called by the tracing functions, the built in quantizers report the stages to listener and use arena
+	IndexedImage quantize (ImageData imgd, byte [][] palette, TraceOptions options, ForkJoinPool pool, TraceListener listener, ScratchArena arena){
+		return quantize(imgd, palette, options, pool);
+	}
+
+
+	static class KMeans extends Quantizer{
+		public IndexedImage quantize (ImageData imgd, byte [][] palette, TraceOptions options, ForkJoinPool pool){
+			return ImageTracer.colorquantization(imgd, palette, options, pool, null, null);
+		}
+		IndexedImage quantize (ImageData imgd, byte [][] palette, TraceOptions options, ForkJoinPool pool, TraceListener listener, ScratchArena arena){
+			return ImageTracer.colorquantization(imgd, palette, options, pool, null, listener, arena);
+		}
+	}// End of KMeans
+
+
+	// Blur, a palette from the pixels, then one closest color pass
+	public static abstract class SinglePass extends Quantizer{
+
+		// The palette is made from pixels added in regions: accumulate() every region, then finish() returns the palette.
+		// The palette doesn't depend on the order of the regions, so a large image can be added tile by tile (see
+		// TiledTracer). An Accumulator can be used by one thread at a time.
+		public interface Accumulator{
+			void accumulate (ImageData region);
+			byte [][] finish (int numberofcolors);
+		}
+
+		// Every palette has its own Accumulator, so the quantizer can be shared by threads
+		public abstract Accumulator accumulator ();
+
+		// A palette of numberofcolors colors (or fewer) from the pixels of imgd
+		public byte [][] palette (ImageData imgd, int numberofcolors){
+			Accumulator acc = accumulator();
+			acc.accumulate(imgd);
+			return acc.finish(numberofcolors);
+		}
+
+		public IndexedImage quantize (ImageData imgd, byte [][] palette, TraceOptions options, ForkJoinPool pool){
+			return quantize(imgd, palette, options, pool, null, null);
+		}
+
+		IndexedImage quantize (ImageData imgd, byte [][] palette, TraceOptions options, ForkJoinPool pool, final TraceListener listener, ScratchArena arena){
+			if( options.blurradius > 0 ){
+				long t0 = 0, a0 = 0;
+				if(listener!=null){ t0 = System.nanoTime(); a0 = ImageTracer.allocatedbytes(pool); }
+				imgd = ImageTracer.blur(imgd, options.blurradius, options.blurdelta, pool, arena);
+				if(listener!=null){ listener.stage(TraceListener.BLUR, System.nanoTime()-t0, ImageTracer.allocatedsince(a0,pool)); }
+			}
+			final long t0 = System.nanoTime();
+			if(palette==null){ palette = palette(imgd, (int)Math.floor(options.numberofcolors)); }
+			// the palette is part of the colorquantization stage
+			TraceListener cqlistener = listener==null ? null : new TraceListener(){
+				public void stage (String stage, long nanos, long allocatedbytes){
+					listener.stage(stage, TraceListener.COLORQUANTIZATION.equals(stage) ? System.nanoTime()-t0 : nanos, allocatedbytes);
+				}
+				public void count (String counter, long value){ listener.count(counter, value); }
+			};
+			return ImageTracer.colorquantization(imgd, palette, options.with("blurradius",0).with("colorquantcycles",1).with("colorquantsample",0),
+					pool, null, cqlistener, arena);
+		}// End of quantize()
+
+	}// End of SinglePass
+
+
+	// Palette color from channel sums (of 128+data values) and a pixel count, transparent black without pixels
+	static byte [] averagecolor (long r, long g, long b, long a, long count){
+		if(count==0){ return new byte[]{ -128, -128, -128, -128 }; }
+		return new byte[]{ (byte)(-128+(r/count)), (byte)(-128+(g/count)), (byte)(-128+(b/count)), (byte)(-128+(a/count)) };
+	}
+
+}// End of Quantizer class
@@ -0,0 +1,56 @@
+/*
+	RadixSort.java
+	Stable primitive sorting for the Z-index in ImageTracer.rendersvg()
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.util.Arrays;
+
+// LSD radix sort of long keys with int values, 8 bits per pass. This is stable: equal keys keep the order of their values
+// in the input. Passes where every key has the same byte are skipped, so small keys need only a few passes.
+public class RadixSort{
+
+	// Converting a double to a long with the same order as Double.compare()
+	public static long sortablebits (double d){
+		long bits = Double.doubleToLongBits(d);
+		return bits<0 ? ~bits : bits|Long.MIN_VALUE;
+	}
+
+
+	// Sorting keys[0 ... n-1] ascending (unsigned), vals are moved with their keys. The arrays are sorted in place.
+	public static void sort (long [] keys, int [] vals, int n){
+		long [] tkeys = new long[n]; int [] tvals = new int[n];
+		long [] srck = keys, dstk = tkeys, swk; int [] srcv = vals, dstv = tvals, swv;
+		int [] count = new int[256];
+		for(int shift=0; shift<64; shift+=8){
+
+			// histogram of this byte
+			Arrays.fill(count,0);
+			for(int i=0; i<n; i++){ count[(int)(srck[i]>>>shift)&255]++; }
+			if( (n==0) || (count[(int)(srck[0]>>>shift)&255]==n) ){ continue; }// all keys have the same byte here
+
+			// bucket starts
+			int sum = 0, c;
+			for(int b=0; b<256; b++){ c = count[b]; count[b] = sum; sum += c; }
+
+			// stable scatter
+			int d;
+			for(int i=0; i<n; i++){
+				d = count[(int)(srck[i]>>>shift)&255]++;
+				dstk[d] = srck[i]; dstv[d] = srcv[i];
+			}
+			swk = srck; srck = dstk; dstk = swk; swv = srcv; srcv = dstv; dstv = swv;
+
+		}// End of shift loop
+
+		// the result is in the temporary arrays after an odd number of passes
+		if(srck!=keys){
+			System.arraycopy(srck, 0, keys, 0, n);
+			System.arraycopy(srcv, 0, vals, 0, n);
+		}
+	}// End of sort()
+
+}// End of RadixSort class
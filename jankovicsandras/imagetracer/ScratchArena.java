@@ -0,0 +1,129 @@
+/*
+	ScratchArena.java
+	Reusable working memory of one thread for ImageTracerEngine
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.util.Arrays;
+
+// The big temporary arrays of a trace are kept here and reused by the next trace of the same thread:
+// the padded index array, the blur buffers, the edge layer data, the path, internode and segment PathBuffers and the
+// color cache. Arrays with the exact size are reused, others grow as needed. This is not thread safe, the engine has one
+// arena per thread. After a trace, everything is released if the retained memory is more than maxretainedbytes.
+public class ScratchArena{
+
+	public static final int PATHS = 0, INTERNODES = 1, SEGMENTS = 2;
+
+	public long maxretainedbytes;
+
+	int [][] indexarray;
+	byte [] blurbuffer, blurhalf;
+	byte [][] layerdata = new byte[0][];
+	PathBuffer [][] buffers = { new PathBuffer[0], new PathBuffer[0], new PathBuffer[0] };
+	ColorCache colorcache;
+	StringBuilder svgbuffer;
+
+	public ScratchArena(long mmaxretainedbytes){ maxretainedbytes = mmaxretainedbytes; }
+
+
+	// Padded index array int[height+2][width+2], reused if it has the same size. If it's reused, the content is not cleared.
+	int [][] indexarray (int width, int height){
+		if( (indexarray==null) || (indexarray.length!=height+2) || (indexarray[0].length!=width+2) ){
+			indexarray = new int[height+2][width+2];
+		}
+		return indexarray;
+	}
+
+
+	// Blur buffers with exactly n bytes, which=0 is the result, which=1 is the half blurred copy
+	byte [] blurbuffer (int which, int n){
+		if(which==0){
+			if((blurbuffer==null)||(blurbuffer.length!=n)){ blurbuffer = new byte[n]; }
+			return blurbuffer;
+		}
+		if((blurhalf==null)||(blurhalf.length!=n)){ blurhalf = new byte[n]; }
+		return blurhalf;
+	}
+
+
+	// Zero filled edge layer data of layer k with at least n bytes
+	byte [] layerdata (int k, int n){
+		if(k>=layerdata.length){ layerdata = Arrays.copyOf(layerdata, k+1); }
+		if((layerdata[k]==null)||(layerdata[k].length<n)){
+			layerdata[k] = new byte[n];
+		}else{
+			Arrays.fill(layerdata[k], 0, n, (byte)0);
+		}
+		return layerdata[k];
+	}
+
+
+	// Cleared PathBuffer of layer k, kind is PATHS, INTERNODES or SEGMENTS
+	PathBuffer buffer (int kind, int k){
+		PathBuffer [] b = buffers[kind];
+		if(k>=b.length){ b = buffers[kind] = Arrays.copyOf(b, k+1); }
+		if(b[k]==null){
+			b[k] = kind==PATHS ? new PathBuffer(3, true) : new PathBuffer(kind==INTERNODES ? 3 : 7, false);
+		}else{
+			b[k].clear();
+		}
+		return b[k];
+	}
+
+
+	ColorCache colorcache (){
+		if(colorcache==null){ colorcache = new ColorCache(); }
+		return colorcache;
+	}
+
+
+	// Empty StringBuilder for streaming the SVG
+	StringBuilder svgbuffer (){
+		if(svgbuffer==null){ svgbuffer = new StringBuilder(ImageTracer.svgflushsize+1024); }
+		svgbuffer.setLength(0);
+		return svgbuffer;
+	}
+
+
+	// The caller keeps the index array and the segment buffers of the last trace: these are not reused any more
+	void handoff (){
+		indexarray = null;
+		Arrays.fill(buffers[SEGMENTS], null);
+	}
+
+
+	// Approximate size of the retained arrays in bytes
+	public long retainedbytes (){
+		long n = 0;
+		if(indexarray!=null){ n += (long)indexarray.length*(indexarray[0].length*4L+16); }
+		if(blurbuffer!=null){ n += blurbuffer.length; }
+		if(blurhalf!=null){ n += blurhalf.length; }
+		for(byte [] d : layerdata){ if(d!=null){ n += d.length; } }
+		for(PathBuffer [] b : buffers){
+			for(PathBuffer pb : b){
+				if(pb!=null){ n += (pb.ints!=null ? pb.ints.length*4L : pb.doubles.length*8L) + pb.offsets.length*4L; }
+			}
+		}
+		if(colorcache!=null){ n += colorcache.capacity()*8L; }
+		if(svgbuffer!=null){ n += svgbuffer.capacity()*2L; }
+		return n;
+	}// End of retainedbytes()
+
+
+	// Releasing everything
+	public void trim (){
+		indexarray = null; blurbuffer = null; blurhalf = null; layerdata = new byte[0][];
+		buffers = new PathBuffer[][]{ new PathBuffer[0], new PathBuffer[0], new PathBuffer[0] };
+		colorcache = null; svgbuffer = null;
+	}
+
+
+	// Releasing everything if more than maxretainedbytes is retained
+	public void trimtocap (){
+		if(retainedbytes()>maxretainedbytes){ trim(); }
+	}
+
+}// End of ScratchArena class
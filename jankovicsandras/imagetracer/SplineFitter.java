@@ -0,0 +1,146 @@
+/*
+	SplineFitter.java
+	tracepath() and fitseq() on primitive internodes without recursion
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.util.Arrays;
+
+// The same steps as ImageTracer.tracepath() and fitseq() on the ArrayList path, with the same floating point operations
+// in the same order, so the segments are identical. The recursive splitting of 5.6. is replaced by a stack of
+// (seqstart, seqend) pairs: the right half is pushed first, so the left half is fitted first, like in the recursion.
+// The stack is kept by the fitter and reused for every path, the segments are written directly to the doubles of the
+// output PathBuffer, so tracing a path allocates nothing once the arrays are big enough.
+// A SplineFitter is not thread safe, every thread (or chunk of paths) should have its own.
+public class SplineFitter{
+
+	int [] stack = new int[64];
+
+
+	// 5. tracepath() on path p of an internodes() PathBuffer, appending the segments as a new path to out (doubles, stride 7)
+	public void tracepath (PathBuffer internodes, int p, float ltreshold, float qtreshold, PathBuffer out){
+		int pcnt=0, seqend=0; double segtype1, segtype2;
+		double [] path = internodes.doubles;
+		int base = internodes.pathstart(p)*3, pathlength = internodes.pathlength(p);
+		// every segment ends on a different point of the path, usually
+		out.ensurecapacity(out.records+pathlength);
+
+		while(pcnt<pathlength){
+			// 5.1. Find sequences of points with only 2 segment types
+			segtype1 = path[base+(pcnt*3)+2]; segtype2 = -1; seqend=pcnt+1;
+			while(
+					((path[base+(seqend*3)+2]==segtype1) || (path[base+(seqend*3)+2]==segtype2) || (segtype2==-1))
+					&& (seqend<(pathlength-1))){
+				if((path[base+(seqend*3)+2]!=segtype1) && (segtype2==-1)){ segtype2 = path[base+(seqend*3)+2];}
+				seqend++;
+			}
+			if(seqend==(pathlength-1)){ seqend = 0; }
+
+			// 5.2. - 5.6.
+			fitseq(path,base,pathlength,ltreshold,qtreshold,pcnt,seqend,out);
+
+			// forward pcnt;
+			if(seqend>0){ pcnt = seqend; }else{ pcnt = pathlength; }
+
+		}// End of pcnt loop
+
+		out.endpath();
+	}// End of tracepath()
+
+
+	// 5.2. - 5.6. fitting straight or quadratic line segments on the sequence seqstart ... seqend, path[base+(i*3)] ,
+	// path[base+(i*3)+1] are the coordinates of point i, segments are appended to the current path of out
+	void fitseq (double [] path, int base, int pathlength, float ltreshold, float qtreshold, int mseqstart, int mseqend, PathBuffer out){
+		int sp = 0, seqstart, seqend, errorpoint, fitpoint, splitpoint, pcnt, idx;
+		boolean curvepass;
+		double px, py, dist2, errorval, dx, dy, sx, sy, ex, ey, tl, vx, vy, pl, t, t1, t2, t3, cpx, cpy;
+		stack[sp++] = mseqstart; stack[sp++] = mseqend;
+
+		while(sp>0){
+			seqend = stack[--sp]; seqstart = stack[--sp];
+
+			// skip if invalid seqend
+			if((seqend>pathlength)||(seqend<0)){ continue; }
+
+			errorpoint=seqstart; curvepass=true; errorval=0;
+			sx = path[base+(seqstart*3)]; sy = path[base+(seqstart*3)+1]; ex = path[base+(seqend*3)]; ey = path[base+(seqend*3)+1];
+			tl = (seqend-seqstart); if(tl<0){ tl += pathlength; }
+			vx = (ex-sx) / tl;
+			vy = (ey-sy) / tl;
+
+			// 5.2. Fit a straight line on the sequence
+			pcnt = (seqstart+1)%pathlength;
+			while(pcnt != seqend){
+				pl = pcnt-seqstart; if(pl<0){ pl += pathlength; }
+				px = sx + (vx * pl); py = sy + (vy * pl);
+				dx = path[base+(pcnt*3)]-px; dy = path[base+(pcnt*3)+1]-py;
+				dist2 = (dx*dx) + (dy*dy);
+				if(dist2>ltreshold){curvepass=false;}
+				if(dist2>errorval){ errorpoint=pcnt; errorval=dist2; }
+				pcnt = (pcnt+1)%pathlength;
+			}
+
+			// straight line if fits
+			if(curvepass){
+				idx = out.newrecord();
+				out.doubles[idx  ] = 1.0;
+				out.doubles[idx+1] = sx;
+				out.doubles[idx+2] = sy;
+				out.doubles[idx+3] = ex;
+				out.doubles[idx+4] = ey;
+				out.doubles[idx+5] = 0.0;
+				out.doubles[idx+6] = 0.0;
+				continue;
+			}
+
+			// 5.3. If the straight line fails (an error>ltreshold), find the point with the biggest error
+			fitpoint = errorpoint; curvepass = true; errorval = 0;
+
+			// 5.4. Fit a quadratic spline through this point, measure errors on every point in the sequence
+			// helpers and projecting to get control point
+			t=(fitpoint-seqstart)/tl; t1=(1.0-t)*(1.0-t); t2=2.0*(1.0-t)*t; t3=t*t;
+			cpx = (((t1*sx) + (t3*ex)) - path[base+(fitpoint*3)])/-t2;
+			cpy = (((t1*sy) + (t3*ey)) - path[base+(fitpoint*3)+1])/-t2;
+
+			// Check every point
+			pcnt = seqstart+1;
+			while(pcnt != seqend){
+				t=(pcnt-seqstart)/tl; t1=(1.0-t)*(1.0-t); t2=2.0*(1.0-t)*t; t3=t*t;
+				px = (t1 * sx) + (t2 * cpx) + (t3 * ex);
+				py = (t1 * sy) + (t2 * cpy) + (t3 * ey);
+				dx = path[base+(pcnt*3)]-px; dy = path[base+(pcnt*3)+1]-py;
+				dist2 = (dx*dx) + (dy*dy);
+				if(dist2>qtreshold){curvepass=false;}
+				if(dist2>errorval){ errorpoint=pcnt; errorval=dist2; }
+				pcnt = (pcnt+1)%pathlength;
+			}
+
+			// spline if fits
+			if(curvepass){
+				idx = out.newrecord();
+				out.doubles[idx  ] = 2.0;
+				out.doubles[idx+1] = sx;
+				out.doubles[idx+2] = sy;
+				out.doubles[idx+3] = cpx;
+				out.doubles[idx+4] = cpy;
+				out.doubles[idx+5] = ex;
+				out.doubles[idx+6] = ey;
+				continue;
+			}
+
+			// 5.5. If the spline fails (an error>qtreshold), find the point with the biggest error,
+			// set splitpoint = (fitting point + errorpoint)/2
+			splitpoint = (fitpoint + errorpoint)/2;
+
+			// 5.6. Split sequence: splitpoint-endpoint is pushed first, so startpoint-splitpoint is fitted first
+			if(sp+4>stack.length){ stack = Arrays.copyOf(stack, stack.length*2); }
+			stack[sp++] = splitpoint; stack[sp++] = seqend;
+			stack[sp++] = seqstart; stack[sp++] = splitpoint;
+		}
+
+	}// End of fitseq()
+
+}// End of SplineFitter class
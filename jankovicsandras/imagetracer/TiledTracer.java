@@ -0,0 +1,703 @@
+/*
+	TiledTracer.java
+	Tracing very large images tile by tile with a global palette, stitching the paths which cross tile borders
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.awt.Rectangle;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntConsumer;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+
+// The result is the same as ImageTracer.imagedataToTracebuffers(), but there are no full image arrays:
+//  1. The palette is learned like in colorquantization(), every cycle reads all pixel tiles and sums their palette accumulators.
+//     With colorquantsample, the tiles are read once for the sample of colorquantization(), and the cycles run on that.
+//     The octree and median cut quantizers (options.quantizer) make the palette in one pass: every blurred pixel tile is
+//     added to their Quantizer.SinglePass.Accumulator.
+//  2. Every tile of tilesize x tilesize edge nodes is quantized with the final palette (the last cycle), its edge nodes are
+//     calculated from the 4 pixels around them, then walked like in pathscan(). Paths inside the tile are traced here,
+//     the parts of paths crossing the tile border are kept as fragments: these start where the path enters the tile and end
+//     where it leaves.
+//  3. The fragments are joined at their entry and exit points to closed paths, these are traced, then the paths of every
+//     layer are sorted by their start node.
+// The fragments are walked with the layer color on their left. The saddle nodes (5, 10) connect the same edges in both
+// walk directions, so the joined paths are the paths of pathscan(), maybe reversed: pathscan() starts every path at its
+// first node in row order and walks it clockwise. Peak memory is the tiles in progress and the traced result. An image file
+// is read in full width strips of a tile row from the top, once per pass (see foreachtile()), so the tiles in progress are
+// the tiles of a strip.
+// Usage:
+//  TiledTracer.FileSource source = new TiledTracer.FileSource(new File("map.png"));
+//  IndexedImage ii = TiledTracer.trace(source, TraceOptions.DEFAULT, null, 1024, pool);
+//  ImageTracer.saveSVG("map.svg", ii, TraceOptions.DEFAULT, null);
+public class TiledTracer{
+
+	public static int defaulttilesize = 1024;
+
+	// Pixels of an image: read() returns the region x ... x+w-1, y ... y+h-1, this can be called from many threads
+	public interface TileSource{
+		int width();
+		int height();
+		ImageData read (int x, int y, int w, int h) throws IOException;
+	}
+
+
+	// ImageData in memory
+	public static TileSource source (final ImageData imgd){
+		return new TileSource(){
+			public int width (){ return imgd.width; }
+			public int height (){ return imgd.height; }
+			public ImageData read (int x, int y, int w, int h){ return crop(imgd, x, y, w, h); }
+		};
+	}
+
+
+	// Image file, the regions are decoded with ImageReadParam.setSourceRegion(), so the whole image is not loaded.
+	// Only formats with random access (tiled TIFF) are read in tiles. The others decode the rows from the top for every
+	// region, so TiledTracer reads them in full width strips from the top with strips(): non interlaced PNG rows are
+	// decoded once, other formats read a region for every strip.
+	public static class FileSource implements TileSource, Closeable{
+		final File file;
+		final ImageInputStream stream;
+		final ImageReader reader;
+		final int width, height;
+		final boolean randomaccess;
+
+		public FileSource(File mfile) throws IOException {
+			file = mfile;
+			stream = ImageIO.createImageInputStream(file);
+			if(stream==null){ throw new IOException("Can't read "+file); }
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+			if(!readers.hasNext()){ stream.close(); throw new IOException("Unsupported image format: "+file); }
+			reader = readers.next();
+			reader.setInput(stream, false, true);
+			width = reader.getWidth(0); height = reader.getHeight(0);
+			randomaccess = reader.isImageTiled(0);
+		}
+
+		public int width (){ return width; }
+		public int height (){ return height; }
+
+		public synchronized ImageData read (int x, int y, int w, int h) throws IOException {
+			ImageReadParam param = reader.getDefaultReadParam();
+			param.setSourceRegion(new Rectangle(x, y, w, h));
+			try{
+				return ImageTracer.loadImageData(reader.read(0, param));
+			}catch(IOException e){ throw e; }catch(Exception e){ throw new IOException(e); }
+		}
+
+		// Reading the rows from the top, see StripReader
+		public synchronized StripReader strips () throws IOException {
+			return new StripReader(this, PngRowReader.open(file, reader));
+		}
+
+		public void close () throws IOException {
+			reader.dispose();
+			stream.close();
+		}
+	}// End of FileSource
+
+
+	// Full width rows of a FileSource from the top: read(y0, y1) returns the rows y0 ... y1-1, y0 and y1 can't be smaller
+	// than in the previous call. With a PngRowReader, the rows of the previous strip are kept and the next rows are
+	// decoded, else the strip is read as a region.
+	public static class StripReader implements Closeable{
+		final FileSource source;
+		final PngRowReader png;
+		ImageData rows; int rowsy0;// the previous strip
+
+		StripReader(FileSource msource, PngRowReader mpng){ source = msource; png = mpng; }
+
+		public ImageData read (int y0, int y1) throws IOException {
+			if(png==null){ return source.read(0, y0, source.width, y1-y0); }
+			int w4 = source.width*4, decoded = png.y;
+			if(y0>decoded){ png.skiprows(y0-decoded); decoded = y0; }
+			byte [] data = new byte[(y1-y0)*w4];
+			if(decoded>y0){ System.arraycopy(rows.data, (y0-rowsy0)*w4, data, 0, (decoded-y0)*w4); }
+			if(y1>decoded){
+				ImageData next;
+				try{
+					next = ImageTracer.loadImageData(png.next(y1-decoded));
+				}catch(IOException e){ throw e; }catch(Exception e){ throw new IOException(e); }
+				System.arraycopy(next.data, 0, data, (decoded-y0)*w4, next.data.length);
+			}
+			rows = new ImageData(source.width, y1-y0, data); rowsy0 = y0;
+			return rows;
+		}// End of read()
+
+		public void close () throws IOException {
+			if(png!=null){ png.close(); }
+		}
+	}// End of StripReader
+
+
+	// The rows y0 ... y0+rows.height-1 of a w x h image as a TileSource of the whole image, read() must stay in these rows
+	static TileSource strip (final ImageData rows, final int y0, final int w, final int h){
+		return new TileSource(){
+			public int width (){ return w; }
+			public int height (){ return h; }
+			public ImageData read (int x, int y, int rw, int rh){ return crop(rows, x, y-y0, rw, rh); }
+		};
+	}// End of strip()
+
+
+	// Copying a region of imgd
+	static ImageData crop (ImageData imgd, int x, int y, int w, int h){
+		byte [] data = new byte[w*h*4];
+		for(int j=0; j<h; j++){ System.arraycopy(imgd.data, (((y+j)*imgd.width)+x)*4, data, j*w*4, w*4); }
+		return new ImageData(w, h, data);
+	}
+
+
+	// Tracing source in tiles of tilesize x tilesize edge nodes, the tiles are traced in parallel on pool if it's not null.
+	// Returns an IndexedImage with pathbuffers and palette, array is null. palette can be null, like in
+	// ImageTracer.imagedataToTracebuffers(), and it's changed by the color quantization too.
+	public static IndexedImage trace (final TileSource source, final TraceOptions options, byte [][] palette, int tilesize, ForkJoinPool pool) throws IOException {
+		final int w = source.width(), h = source.height(), ts = Math.max(1, tilesize);
+
+		// 1. Global palette
+		final byte [][] fpalette = globalpalette(source, options, palette, ts, pool);
+
+		// 2. Tiles of the (w+1) x (h+1) edge nodes
+		final int tcols = (w+ts)/ts, trows = (h+ts)/ts;
+		final Tile [] tiles = new Tile[tcols*trows];
+		// a tile reads the pixels from nx0-1
+		foreachtile(source, tcols, trows, ts, 1+blurmargin(options), pool, new TileBody(){ public void run(TileSource pixels, int t) throws IOException {
+			int nx0 = (t%tcols)*ts, ny0 = (t/tcols)*ts;
+			tiles[t] = tracetile(pixels, fpalette, options, nx0, ny0, Math.min(nx0+ts, w+1), Math.min(ny0+ts, h+1));
+		}});
+
+		// 3. Stitching the fragments and ordering the paths in every layer
+		final PathBuffer [] layers = new PathBuffer[fpalette.length];
+		foreach(pool, layers.length, new Body(){ public void run(int k){
+			layers[k] = assemble(tiles, k, stitch(tiles, k, w, options), w);
+		}});
+
+		IndexedImage ii = new IndexedImage(w, h, fpalette);
+		ii.pathbuffers = layers;
+		return ii;
+	}// End of trace()
+
+
+	// The final palette of options.quantizer: k-means cycles with learnpalette(), or a single pass palette from all blurred
+	// pixel tiles. palette can be null, it's changed by the k-means cycles.
+	static byte [][] globalpalette (TileSource source, final TraceOptions options, byte [][] palette, final int ts, ForkJoinPool pool) throws IOException {
+		int numberofcolors = (int)Math.floor(options.numberofcolors);
+		Quantizer quantizer = Quantizer.create(options);
+		if(quantizer instanceof Quantizer.SinglePass){
+			// a given palette is used without changes, like in Quantizer.SinglePass
+			if(palette!=null){ return palette; }
+			final Quantizer.SinglePass.Accumulator acc = ((Quantizer.SinglePass)quantizer).accumulator();
+			final int w = source.width(), h = source.height(), tcols = (w+ts-1)/ts, trows = (h+ts-1)/ts;
+			foreachtile(source, tcols, trows, ts, blurmargin(options), pool, new TileBody(){ public void run(TileSource pixels, int t) throws IOException {
+				int x0 = (t%tcols)*ts, y0 = (t/tcols)*ts;
+				ImageData imgd = readblurred(pixels, options, x0, y0, Math.min(x0+ts, w), Math.min(y0+ts, h));
+				// the palette doesn't depend on the order of the tiles
+				synchronized(acc){ acc.accumulate(imgd); }
+			}});
+			return acc.finish(numberofcolors);
+		}
+		Random rng = ImageTracer.randomgenerator(options);
+		if(palette==null){
+			palette = options.colorsampling!=0 ? samplepalette(numberofcolors, source, rng) : ImageTracer.generatepalette(numberofcolors, rng);
+		}
+		learnpalette(source, palette, options, ts, pool, rng);
+		return palette;
+	}// End of globalpalette()
+
+
+	// The single pass quantizers assign the colors even without colorquantcycles
+	static boolean singlepass (TraceOptions options){
+		return Quantizer.create(options) instanceof Quantizer.SinglePass;
+	}
+
+
+	// Random palette colors from the source like ImageTracer.samplepalette(). The rows of a FileSource without random
+	// access are read from the top, once.
+	static byte [][] samplepalette (int numberofcolors, TileSource source, Random rng) throws IOException {
+		int w = source.width(); long n = (long)w*source.height();
+		byte [][] palette = new byte[numberofcolors][4];
+		long [] pixels = new long[numberofcolors]; int [] order = new int[numberofcolors];
+		for(int i=0; i<numberofcolors; i++){
+			pixels[i] = (long)Math.floor((rng==null ? Math.random() : rng.nextDouble())*n); order[i] = i;
+		}
+		if( (source instanceof FileSource) && !((FileSource)source).randomaccess ){
+			long [] keys = pixels.clone();
+			RadixSort.sort(keys, order, numberofcolors);
+			StripReader strips = ((FileSource)source).strips();
+			try{
+				ImageData row = null; int y = -1;
+				for(int i=0; i<numberofcolors; i++){
+					long p = pixels[order[i]];
+					if(p/w!=y){ y = (int)(p/w); row = strips.read(y, y+1); }
+					System.arraycopy(row.data, (int)(p%w)*4, palette[order[i]], 0, 4);
+				}
+			}finally{ strips.close(); }
+			return palette;
+		}
+		for(int i=0; i<numberofcolors; i++){
+			ImageData px = source.read((int)(pixels[i]%w), (int)(pixels[i]/w), 1, 1);
+			for(int c=0; c<4; c++){ palette[i][c] = px.data[c]; }
+		}
+		return palette;
+	}// End of samplepalette()
+
+
+	// The color quantization cycles of ImageTracer.colorquantization() except the last one, which assigns the colors
+	// of the tiles in tracetile(). Every cycle reads all pixel tiles (in parallel, see foreachtile()) and sums their accumulators.
+	// With colorquanttolerance, the cycles stop when the palette shift is small enough: the reassigned pixels are not
+	// counted, because the tiles don't keep their colors.
+	// With 0 < colorquantsample < 1, the cycles run on the same sample as in colorquantization(), the tiles are read once.
+	static void learnpalette (final TileSource source, final byte [][] palette, final TraceOptions options, final int ts, ForkJoinPool pool, Random rng) throws IOException {
+		final int w = source.width(), h = source.height(), cycles = (int)Math.floor(options.colorquantcycles);
+		if( (options.colorquantsample>0) && (options.colorquantsample<1) && (cycles>1) ){
+			ImageData sample = samplepixels(source, options, options.colorquantsample, ts, pool);
+			if(sample!=null){
+				ImageTracer.colorquantization(sample, palette, options.with("colorquantsample",0).with("blurradius",0), pool, null, null, null);
+				return;
+			}
+		}
+		final int tcols = (w+ts-1)/ts, trows = (h+ts-1)/ts;
+		final boolean converge = options.colorquanttolerance>0;
+		boolean [] randomized = converge ? new boolean[palette.length] : null;
+		long [][] paletteacc = new long[palette.length][5];
+		for(int cnt=0; cnt<cycles; cnt++){
+			if(cnt>0){
+				int shift = ImageTracer.averagepalette(palette, paletteacc, (long)w*h, options.mincolorratio, cnt<(cycles-1), rng, randomized);
+				if( converge && (shift<=options.colorquanttolerance*ImageTracer.MAXCOLORDISTANCE) ){ break; }
+			}
+			if(cnt==(cycles-1)){ break; }
+			final long [][][] tileacc = new long[tcols*trows][][];
+			foreachtile(source, tcols, trows, ts, blurmargin(options), pool, new TileBody(){ public void run(TileSource pixels, int t) throws IOException {
+				int x0 = (t%tcols)*ts, y0 = (t/tcols)*ts;
+				ImageData imgd = readblurred(pixels, options, x0, y0, Math.min(x0+ts, w), Math.min(y0+ts, h));
+				tileacc[t] = new long[palette.length][5];
+				ImageTracer.quantizerows(imgd, palette, new int[imgd.height+2][imgd.width+2], tileacc[t], newcache(palette), null, 0, imgd.height);
+			}});
+			for(long [] acc : paletteacc){ for(int c=0; c<5; c++){ acc[c] = 0; } }
+			for(long [][] acc : tileacc){
+				for(int k=0; k<palette.length; k++){ for(int c=0; c<5; c++){ paletteacc[k][c] += acc[k][c]; } }
+			}
+		}
+	}// End of learnpalette()
+
+
+	// ImageTracer.samplepixels() of the blurred source, reading every pixel tile once (see foreachtile()), or null if the sample
+	// would not be smaller than the image
+	static ImageData samplepixels (final TileSource source, final TraceOptions options, float ratio, final int ts, ForkJoinPool pool) throws IOException {
+		final int w = source.width(), h = source.height();
+		final long n = (long)w*h;
+		final ImageData sample = ImageTracer.samplebuffer(n, ratio);
+		if(sample==null){ return null; }
+		final long m = (long)sample.width*sample.height;
+		final double step = (double)n/m;
+		final int tcols = (w+ts-1)/ts, trows = (h+ts-1)/ts;
+		foreachtile(source, tcols, trows, ts, blurmargin(options), pool, new TileBody(){ public void run(TileSource pixels, int t) throws IOException {
+			int x0 = (t%tcols)*ts, y0 = (t/tcols)*ts, x1 = Math.min(x0+ts, w), y1 = Math.min(y0+ts, h);
+			ImageData imgd = readblurred(pixels, options, x0, y0, x1, y1);
+			for(int y=y0; y<y1; y++){
+				// the sample pixels of this tile row: samplepixel() grows with i and i+1 > p/step
+				long rowstart = (long)y*w, pstart = rowstart+x0, pend = rowstart+x1, p;
+				for(long i=Math.max(0, (long)(pstart/step)-1); i<m; i++){
+					p = ImageTracer.samplepixel(i, n, step);
+					if(p>=pend){ break; }
+					if(p>=pstart){ System.arraycopy(imgd.data, (int)(((y-y0)*(x1-x0))+(p-pstart))*4, sample.data, (int)(i*4), 4); }
+				}
+			}
+		}});
+		return sample;
+	}// End of samplepixels()
+
+
+	static ColorCache newcache (byte [][] palette){
+		return palette.length>ImageTracer.colorcacheminpalette ? new ColorCache() : null;
+	}
+
+
+	// Pixels x0 ... x1-1, y0 ... y1-1 after the selective blur of options: the blur reads the pixels within its radius too
+	static ImageData readblurred (TileSource source, TraceOptions options, int x0, int y0, int x1, int y1) throws IOException {
+		int radius = blurmargin(options);
+		if(radius<1){ return source.read(x0, y0, x1-x0, y1-y0); }
+		int bx0 = Math.max(0, x0-radius), by0 = Math.max(0, y0-radius);
+		int bx1 = Math.min(source.width(), x1+radius), by1 = Math.min(source.height(), y1+radius);
+		ImageData blurred = ImageTracer.blur(source.read(bx0, by0, bx1-bx0, by1-by0), options.blurradius, options.blurdelta, null, null, bx0, by0);
+		return crop(blurred, x0-bx0, y0-by0, x1-x0, y1-y0);
+	}// End of readblurred()
+
+
+	// The pixels read around a region by the blur: the blur radius (at most 5), 0 without blur
+	static int blurmargin (TraceOptions options){
+		return options.blurradius<1 ? 0 : Math.min(5, (int)Math.floor(options.blurradius));
+	}
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Tiles
+	//
+	////////////////////////////////////////////////////////////
+
+	// Traced paths and fragments of a tile, for every layer:
+	// segments: the traced paths inside the tile, starts: their first edge node (y*(w+1)+x)
+	// fragments: the parts of the crossing paths (pathscan() records), entries and exits: the node and direction where
+	// the fragment enters and where its walk would continue outside the tile, see key(), firsts: the first node of the
+	// fragment in row order (y*(w+1)+x)
+	// haslayer: the tile has edge nodes of the layer
+	// The arrays of a layer are null if the tile has no paths or no fragments of it, so a tile takes memory by its content,
+	// not by the number of colors.
+	static class Tile{
+		PathBuffer [] segments, fragments;
+		long [][] starts, entries, exits, firsts;
+		boolean [] haslayer;
+	}
+
+
+	// Key of a node and a walk direction
+	static long key (int x, int y, int dir, int w){ return ((((long)y*(w+1))+x)<<2)|dir; }
+
+
+	// Indexed colors of the pixels around the edge nodes of a tile, -1 outside the image
+	static class TileColors{
+		final int [][] arr; final int x0, y0, w, h;
+		TileColors(int [][] marr, int mx0, int my0, int mw, int mh){ arr = marr; x0 = mx0; y0 = my0; w = mw; h = mh; }
+		int get (int x, int y){
+			return ( (x<0) || (y<0) || (x>=w) || (y>=h) ) ? -1 : arr[y-y0+1][x-x0+1];
+		}
+	}
+
+
+	// Tracing the edge nodes nx0 ... nx1-1, ny0 ... ny1-1 (node x,y is the top left corner of pixel x,y)
+	static Tile tracetile (TileSource source, byte [][] palette, TraceOptions options, int nx0, int ny0, int nx1, int ny1) throws IOException {
+		int w = source.width(), h = source.height(), n = palette.length;
+
+		// Quantizing the pixels around the nodes with the final palette, without k-means cycles every pixel gets color 0
+		int rx0 = Math.max(0, nx0-1), ry0 = Math.max(0, ny0-1), rx1 = Math.min(w, nx1), ry1 = Math.min(h, ny1);
+		int [][] arr = new int[ry1-ry0+2][rx1-rx0+2];
+		if( (Math.floor(options.colorquantcycles)>=1) || singlepass(options) ){
+			ImageData imgd = readblurred(source, options, rx0, ry0, rx1, ry1);
+			ImageTracer.quantizerows(imgd, palette, arr, new long[n][5], newcache(palette), null, 0, imgd.height);
+		}
+		TileColors tc = new TileColors(arr, rx0, ry0, w, h);
+
+		// Bounding boxes of the edge nodes of every layer [minx,miny,maxx,maxy]
+		int [][] bounds = ImageTracer.emptybounds(n);
+		int x, y, c, q, tl, tr, br, bl;
+		int [] cs = new int[4];
+		for(y=ny0; y<ny1; y++){
+			for(x=nx0; x<nx1; x++){
+				tl = tc.get(x-1,y-1); tr = tc.get(x,y-1); br = tc.get(x,y); bl = tc.get(x-1,y);
+				if( (tl==tr) && (tl==br) && (tl==bl) ){ continue; }
+				cs[0] = tl; cs[1] = tr; cs[2] = br; cs[3] = bl;
+				for(q=0; q<4; q++){
+					c = cs[q];
+					if(c>=0){ int [] bb = bounds[c]; if(x<bb[0]){ bb[0] = x; } if(y<bb[1]){ bb[1] = y; } if(x>bb[2]){ bb[2] = x; } if(y>bb[3]){ bb[3] = y; } }
+				}
+			}
+		}
+
+		// Edge node layers: the bits of the node type are the pixels around it with the layer color, like in layering()
+		EdgeLayer [] layers = new EdgeLayer[n];
+		for(int k=0; k<n; k++){
+			int [] bb = bounds[k];
+			if(bb[2]>=bb[0]){ layers[k] = new EdgeLayer(bb[2]-bb[0]+1, bb[3]-bb[1]+1, bb[0]+1, bb[1]+1); }
+		}
+		for(y=ny0; y<ny1; y++){
+			for(x=nx0; x<nx1; x++){
+				tl = tc.get(x-1,y-1); tr = tc.get(x,y-1); br = tc.get(x,y); bl = tc.get(x-1,y);
+				if( (tl==tr) && (tl==br) && (tl==bl) ){ continue; }
+				cs[0] = tl; cs[1] = tr; cs[2] = br; cs[3] = bl;
+				for(q=0; q<4; q++){
+					c = cs[q];
+					if(c>=0){
+						EdgeLayer layer = layers[c];
+						layer.set(y-layer.top+1, x-layer.left+1, (tl==c?1:0) + (tr==c?2:0) + (br==c?4:0) + (bl==c?8:0));
+					}
+				}
+			}
+		}
+
+		Tile tile = new Tile();
+		tile.segments = new PathBuffer[n]; tile.starts = new long[n][]; tile.haslayer = new boolean[n];
+		tile.fragments = new PathBuffer[n]; tile.entries = new long[n][]; tile.exits = new long[n][]; tile.firsts = new long[n][];
+		for(int k=0; k<n; k++){ tile.haslayer[k] = layers[k]!=null; }
+
+		// Fragments: walking from the edges where the paths enter the tile. The layer color is on the left of the walk,
+		// so a border edge between two different colors is an entry for one of them.
+		int a, b;
+		for(y=ny0; y<ny1; y++){
+			// west border, walking right (0)
+			if(nx0>0){ a = tc.get(nx0-1,y-1); b = tc.get(nx0-1,y); if( (a!=b) && (a>=0) ){ walkfragment(tile, layers[a], a, nx0, y, 0, nx0, ny0, nx1, ny1, w); } }
+			// east border, walking left (2)
+			if(nx1<=w){ a = tc.get(nx1-1,y-1); b = tc.get(nx1-1,y); if( (a!=b) && (b>=0) ){ walkfragment(tile, layers[b], b, nx1-1, y, 2, nx0, ny0, nx1, ny1, w); } }
+		}
+		for(x=nx0; x<nx1; x++){
+			// north border, walking down (3)
+			if(ny0>0){ a = tc.get(x-1,ny0-1); b = tc.get(x,ny0-1); if( (a!=b) && (b>=0) ){ walkfragment(tile, layers[b], b, x, ny0, 3, nx0, ny0, nx1, ny1, w); } }
+			// south border, walking up (1)
+			if(ny1<=h){ a = tc.get(x-1,ny1-1); b = tc.get(x,ny1-1); if( (a!=b) && (a>=0) ){ walkfragment(tile, layers[a], a, x, ny1-1, 1, nx0, ny0, nx1, ny1, w); } }
+		}
+
+		// The remaining edge nodes form paths inside the tile, these are the same as in pathscan() on the full layer
+		for(int k=0; k<n; k++){
+			if(layers[k]==null){ continue; }
+			PathBuffer paths = ImageTracer.pathscan(layers[k], (int)Math.floor(options.pathomit));
+			tile.starts[k] = new long[paths.pathcount];
+			for(int p=0; p<paths.pathcount; p++){
+				int r = paths.pathstart(p)*3;
+				tile.starts[k][p] = ((long)paths.ints[r+1]*(w+1))+paths.ints[r];
+			}
+			tile.segments[k] = tracepaths(paths, options);
+		}
+
+		return tile;
+	}// End of tracetile()
+
+
+	// Walking a path part from node x,y with direction dir until it leaves the tile, like in pathscan()
+	static void walkfragment (Tile tile, EdgeLayer layer, int k, int x, int y, int dir, int nx0, int ny0, int nx1, int ny1, int w){
+		if(tile.fragments[k]==null){
+			tile.fragments[k] = new PathBuffer(3, true, 16); tile.entries[k] = new long[4]; tile.exits[k] = new long[4]; tile.firsts[k] = new long[4];
+		}
+		PathBuffer fragments = tile.fragments[k];
+		int f = fragments.pathcount, v, idx, ox = layer.left-1, oy = layer.top-1;
+		long first = Long.MAX_VALUE, s;
+		byte [] lookuprow;
+		if(f>=tile.entries[k].length){
+			tile.entries[k] = java.util.Arrays.copyOf(tile.entries[k], f*2);
+			tile.exits[k] = java.util.Arrays.copyOf(tile.exits[k], f*2);
+			tile.firsts[k] = java.util.Arrays.copyOf(tile.firsts[k], f*2);
+		}
+		tile.entries[k][f] = key(x, y, dir, w);
+		while( (x>=nx0) && (x<nx1) && (y>=ny0) && (y<ny1) ){
+			s = ((long)y*(w+1))+x; if(s<first){ first = s; }
+			v = layer.get(y-oy, x-ox);
+			idx = fragments.newrecord();
+			fragments.ints[idx] = x; fragments.ints[idx+1] = y; fragments.ints[idx+2] = v;
+			lookuprow = ImageTracer.pathscan_combined_lookup[ v ][ dir ];
+			layer.set(y-oy, x-ox, lookuprow[0]); dir = lookuprow[1]; x += lookuprow[2]; y += lookuprow[3];
+		}
+		tile.exits[k][f] = key(x, y, dir, w);
+		tile.firsts[k][f] = first;
+		fragments.endpath();
+	}// End of walkfragment()
+
+
+	// internodes() and tracepath() of all paths
+	static PathBuffer tracepaths (PathBuffer paths, TraceOptions options){
+		PathBuffer ins = new PathBuffer(3, false, paths.records);
+		ImageTracer.internodes(paths, 0, paths.pathcount, ins);
+		PathBuffer segments = new PathBuffer(7, false, Math.max(1, ins.records/4));
+		SplineFitter fitter = new SplineFitter();
+		for(int p=0; p<ins.pathcount; p++){ fitter.tracepath(ins, p, options.ltres, options.qtres, segments); }
+		return segments;
+	}
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Stitching
+	//
+	////////////////////////////////////////////////////////////
+
+	// Traced paths joined from fragments of layer k and their start nodes
+	static class Stitched{
+		PathBuffer segments; long [] starts;
+	}
+
+
+	// Joining the fragments of layer k: the exit of a fragment is the entry of the next one. The closed path is rotated to
+	// start at its first node in row order, then hole paths and paths shorter than pathomit are dropped like in pathscan().
+	static Stitched stitch (Tile [] tiles, int k, int w, TraceOptions options){
+		return stitch(tiles, k, w, options, null, null);
+	}// End of stitch()
+	// previous: the result of a previous frame, clean[t]: tile t is the same as in that frame. A path joined only from
+	// fragments of clean tiles is the same as before, its traced segments are copied from previous (see IncrementalTracer).
+	static Stitched stitch (Tile [] tiles, int k, int w, TraceOptions options, Stitched previous, boolean [] clean){
+		int n = 0;
+		for(Tile t : tiles){ if(t.fragments[k]!=null){ n += t.fragments[k].pathcount; } }
+		int [] ftile = new int[n], fpath = new int[n];
+		HashMap<Long,Integer> byentry = new HashMap<Long,Integer>(n*2);
+		int f = 0;
+		for(int t=0; t<tiles.length; t++){
+			if(tiles[t].fragments[k]==null){ continue; }
+			for(int p=0; p<tiles[t].fragments[k].pathcount; p++){
+				ftile[f] = t; fpath[f] = p; byentry.put(tiles[t].entries[k][p], f); f++;
+			}
+		}
+
+		// start nodes of the previous paths
+		HashMap<Long,Integer> previousstarts = null;
+		int [] reused = new int[16]; int reusedcount = 0;
+		if(previous!=null){
+			previousstarts = new HashMap<Long,Integer>(previous.starts.length*2);
+			for(int p=0; p<previous.starts.length; p++){ previousstarts.put(previous.starts[p], p); }
+		}
+
+		boolean [] used = new boolean[n];
+		PathBuffer joined = new PathBuffer(3, true), paths = new PathBuffer(3, true);
+		long [] starts = new long[16];
+		float pathomit = (int)Math.floor(options.pathomit);
+		int g;
+		for(int f0=0; f0<n; f0++){
+			if(used[f0]){ continue; }
+
+			if(previous!=null){
+				boolean same = true;
+				long start = Long.MAX_VALUE;
+				g = f0;
+				do{
+					same = same && clean[ftile[g]];
+					if(tiles[ftile[g]].firsts[k][fpath[g]]<start){ start = tiles[ftile[g]].firsts[k][fpath[g]]; }
+					g = byentry.get(tiles[ftile[g]].exits[k][fpath[g]]);
+				}while(g!=f0);
+				if(same){
+					// the path is the same as before, or it was dropped before too
+					do{ used[g] = true; g = byentry.get(tiles[ftile[g]].exits[k][fpath[g]]); }while(g!=f0);
+					Integer p = previousstarts.get(start);
+					if(p!=null){
+						if(reusedcount>=reused.length){ reused = java.util.Arrays.copyOf(reused, reused.length*2); }
+						reused[reusedcount++] = p;
+					}
+					continue;
+				}
+			}
+
+			// joining
+			joined.clear();
+			g = f0;
+			do{
+				used[g] = true;
+				PathBuffer fragments = tiles[ftile[g]].fragments[k];
+				joined.ensurecapacity(joined.records+fragments.pathlength(fpath[g]));
+				System.arraycopy(fragments.ints, fragments.pathstart(fpath[g])*3, joined.ints, joined.records*3, fragments.pathlength(fpath[g])*3);
+				joined.records += fragments.pathlength(fpath[g]);
+				g = byentry.get(tiles[ftile[g]].exits[k][fpath[g]]);
+			}while(g!=f0);
+
+			// first node in row order
+			int len = joined.records, first = 0;
+			long start = Long.MAX_VALUE, s;
+			for(int r=0; r<len; r++){
+				s = ((long)joined.ints[(r*3)+1]*(w+1))+joined.ints[r*3];
+				if(s<start){ start = s; first = r; }
+			}
+			// a saddle (type 10) is the first node of a hole path, its other half was walked before (then its type is 11)
+			int v = joined.ints[(first*3)+2];
+			boolean holepath = ImageTracer.pathscan_holepath_lookup[v] || (v==10);
+			if( holepath || (len<pathomit) ){ continue; }
+
+			// pathscan() walks every path clockwise from the first node, so it continues to the east (the walks of the
+			// fragments have the layer color on the left, these are clockwise only for hole paths)
+			paths.ensurecapacity(paths.records+len);
+			int nx = ((first+1)%len)*3;
+			if( (joined.ints[nx]>joined.ints[first*3]) && (joined.ints[nx+1]==joined.ints[(first*3)+1]) ){
+				System.arraycopy(joined.ints, first*3, paths.ints, paths.records*3, (len-first)*3);
+				System.arraycopy(joined.ints, 0, paths.ints, (paths.records+len-first)*3, first*3);
+				paths.records += len;
+			}else{
+				for(int r=0; r<len; r++){
+					int idx = paths.newrecord(), src = (((first-r)+len)%len)*3;
+					paths.ints[idx] = joined.ints[src]; paths.ints[idx+1] = joined.ints[src+1]; paths.ints[idx+2] = joined.ints[src+2];
+				}
+			}
+			if(paths.pathcount>=starts.length){ starts = java.util.Arrays.copyOf(starts, starts.length*2); }
+			starts[paths.pathcount] = start;
+			paths.endpath();
+		}
+
+		Stitched st = new Stitched();
+		st.segments = tracepaths(paths, options);
+		st.starts = java.util.Arrays.copyOf(starts, paths.pathcount+reusedcount);
+		// the order doesn't matter, assemble() sorts the paths
+		for(int r=0; r<reusedcount; r++){
+			st.segments.appendpath(previous.segments, reused[r]);
+			st.starts[paths.pathcount+r] = previous.starts[reused[r]];
+		}
+		return st;
+	}// End of stitch()
+
+
+	// All traced paths of layer k ordered by their start nodes, this is the order of pathscan() on the full layer
+	static PathBuffer assemble (Tile [] tiles, int k, Stitched st, int w){
+		int n = st.starts.length, records = st.segments.records;
+		for(Tile t : tiles){ if(t.starts[k]!=null){ n += t.starts[k].length; records += t.segments[k].records; } }
+		// source of every path: (buffer number << 32) | path number, buffer tiles.length is the stitched one
+		long [] keys = new long[n]; int [] order = new int[n];
+		long [] source = new long[n];
+		int i = 0;
+		for(int t=0; t<=tiles.length; t++){
+			long [] starts = t<tiles.length ? tiles[t].starts[k] : st.starts;
+			if(starts==null){ continue; }
+			for(int p=0; p<starts.length; p++){ keys[i] = starts[p]; order[i] = i; source[i] = ((long)t<<32)|p; i++; }
+		}
+		RadixSort.sort(keys, order, n);
+		PathBuffer out = new PathBuffer(7, false, Math.max(1, records));
+		for(i=0; i<n; i++){
+			int t = (int)(source[order[i]]>>>32), p = (int)source[order[i]];
+			out.appendpath(t<tiles.length ? tiles[t].segments[k] : st.segments, p);
+		}
+		return out;
+	}// End of assemble()
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Parallel helper
+	//
+	////////////////////////////////////////////////////////////
+
+	interface Body{ void run(int i) throws IOException; }
+	interface TileBody{ void run(TileSource pixels, int t) throws IOException; }
+
+	// Running body for 0 ... n-1 on pool or sequentially if pool is null
+	static void foreach (ForkJoinPool pool, int n, final Body body) throws IOException {
+		if(pool==null){
+			for(int i=0; i<n; i++){ body.run(i); }
+			return;
+		}
+		try{
+			ImageTracer.parallelfor(pool, n, 1, new IntConsumer(){ public void accept(int i){
+				try{ body.run(i); }catch(IOException e){ throw new UncheckedIOException(e); }
+			}});
+		}catch(UncheckedIOException e){ throw e.getCause(); }
+	}// End of foreach()
+
+
+	// Running body for the tiles 0 ... tcols*trows-1 of ts x ts pixels or edge nodes, tile t is in row t/tcols. The tiles
+	// read the pixels of their rows and margin rows above and below. pixels is source, except for a FileSource without
+	// random access: that is read in full width strips from the top, a strip has the rows of a tile row with the margins,
+	// then the tiles of the strip run on pool (pixels is the strip).
+	static void foreachtile (final TileSource source, int tcols, int trows, int ts, int margin, ForkJoinPool pool, final TileBody body) throws IOException {
+		if( !(source instanceof FileSource) || ((FileSource)source).randomaccess ){
+			foreach(pool, tcols*trows, new Body(){ public void run(int t) throws IOException { body.run(source, t); }});
+			return;
+		}
+		int w = source.width(), h = source.height();
+		StripReader strips = ((FileSource)source).strips();
+		try{
+			for(int r=0; r<trows; r++){
+				int y0 = Math.min(h, Math.max(0, (r*ts)-margin)), y1 = Math.min(h, ((r+1)*ts)+margin);
+				final TileSource pixels = strip(strips.read(y0, y1), y0, w, h);
+				final int first = r*tcols;
+				foreach(pool, tcols, new Body(){ public void run(int c) throws IOException { body.run(pixels, first+c); }});
+			}
+		}finally{ strips.close(); }
+	}// End of foreachtile()
+
+}// End of TiledTracer class
@@ -0,0 +1,343 @@
+/*
+	TraceCache.java
+	Content addressed cache of tracing results with a size bounded LRU memory tier and an optional disk tier
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+
+// The key is a 128 bit hash of the pixels, the size, the normalized options and the palette. The hash is fast, but not
+// cryptographic: different images with the same key could be made on purpose.
+// Memory tier: the least recently used entries are evicted above maxbytes (estimated sizes).
+// Disk tier (optional): SVG results in dir/<key>.svg, these survive restarts. The oldest files are deleted above
+// maxdiskbytes, a hit updates the file time. Tracedata results are only in the memory tier.
+// Tracing with a random palette (colorsampling, numberofcolors which is not a cube, or mincolorratio with 3 or more
+// colorquantcycles) is not cached without the seed option, see cacheable().
+// The palette argument is not changed (a copy is traced). The cached IndexedImages are shared, these must not be modified.
+// This is thread safe, the same image can be traced by more threads at the same time if it's not in the cache yet.
+// Usage:
+//  TraceCache cache = new TraceCache(256L<<20, new File("svgcache"), 4L<<30);
+//  String svg = cache.imagedataToSVG(imgd, options, null, pool);
+public class TraceCache{
+
+	static final int SVG = 1, TRACEDATA = 2;
+
+	final long maxbytes, maxdiskbytes;
+	final File dir;
+	long bytes = 0, diskbytes = 0;
+
+	// Statistics
+	public long hits = 0, diskhits = 0, misses = 0, bypasses = 0, evictions = 0, diskevictions = 0;
+
+	static class Entry{
+		final Object value; final long bytes;
+		Entry(Object mvalue, long mbytes){ value = mvalue; bytes = mbytes; }
+	}
+
+	// access ordered, the first entry is the least recently used
+	final LinkedHashMap<Key,Entry> entries = new LinkedHashMap<Key,Entry>(64, 0.75f, true);
+
+	// Memory tier only
+	public TraceCache(long mmaxbytes){
+		maxbytes = mmaxbytes; dir = null; maxdiskbytes = 0;
+	}
+
+	// Memory and disk tier, dir is created if it doesn't exist
+	public TraceCache(long mmaxbytes, File mdir, long mmaxdiskbytes) throws IOException {
+		maxbytes = mmaxbytes; dir = mdir; maxdiskbytes = mmaxdiskbytes;
+		if(!dir.isDirectory() && !dir.mkdirs()){ throw new IOException("Can't create cache directory "+dir); }
+		File [] files = dir.listFiles();
+		if(files!=null){ for(File f : files){ if(f.getName().endsWith(".svg")){ diskbytes += f.length(); } } }
+		if(diskbytes>maxdiskbytes){ evictdisk(); }
+	}
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Cached functions
+	//
+	////////////////////////////////////////////////////////////
+
+	// Like ImageTracer.imagedataToSVG()
+	public String imagedataToSVG (ImageData imgd, HashMap<String,Float> options, byte [][] palette, ForkJoinPool pool){
+		return imagedataToSVG(imgd, TraceOptions.frommap(options), palette, pool);
+	}
+	public String imagedataToSVG (ImageData imgd, TraceOptions options, byte [][] palette, ForkJoinPool pool){
+		if(!cacheable(options, palette)){
+			synchronized(this){ bypasses++; }
+			return ImageTracer.imagedataToSVG(imgd, options, copy(palette), pool, null);
+		}
+		Key key = key(SVG, imgd, options, palette);
+		String svg = (String)get(key);
+		if(svg!=null){ return svg; }
+		// disk tier
+		File file = dir==null ? null : new File(dir, key.tostring()+".svg");
+		if( (file!=null) && file.isFile() ){
+			try{
+				svg = new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+				file.setLastModified(System.currentTimeMillis());
+				synchronized(this){ diskhits++; }
+				put(key, svg, svg.length()*2L);
+				return svg;
+			}catch(IOException e){}// deleted or unreadable: tracing again
+		}
+		synchronized(this){ misses++; }
+		svg = ImageTracer.imagedataToSVG(imgd, options, copy(palette), pool, null);
+		put(key, svg, svg.length()*2L);
+		if(file!=null){ writedisk(file, svg); }
+		return svg;
+	}// End of imagedataToSVG()
+
+
+	// Like ImageTracer.imagedataToTracedata()
+	public IndexedImage imagedataToTracedata (ImageData imgd, HashMap<String,Float> options, byte [][] palette, ForkJoinPool pool){
+		return imagedataToTracedata(imgd, TraceOptions.frommap(options), palette, pool);
+	}
+	public IndexedImage imagedataToTracedata (ImageData imgd, TraceOptions options, byte [][] palette, ForkJoinPool pool){
+		if(!cacheable(options, palette)){
+			synchronized(this){ bypasses++; }
+			return ImageTracer.imagedataToTracedata(imgd, options, copy(palette), pool, null);
+		}
+		Key key = key(TRACEDATA, imgd, options, palette);
+		IndexedImage ii = (IndexedImage)get(key);
+		if(ii!=null){ return ii; }
+		synchronized(this){ misses++; }
+		ii = ImageTracer.imagedataToTracedata(imgd, options, copy(palette), pool, null);
+		put(key, ii, estimatebytes(ii));
+		return ii;
+	}// End of imagedataToTracedata()
+
+
+	// Is the result the same every time: the palette is not random, or the random numbers are seeded
+	public static boolean cacheable (TraceOptions options, byte [][] palette){
+		if(options.seed!=0){ return true; }
+		// the single pass quantizers are not random
+		if(Quantizer.create(options)!=Quantizer.KMEANSQUANTIZER){ return true; }
+		int cycles = (int)Math.floor(options.colorquantcycles);
+		// averagepalette() randomizes the rare colors
+		if( (options.mincolorratio>0) && (cycles>=3) ){ return false; }
+		if(palette==null){
+			if(options.colorsampling!=0){ return false; }
+			// generatepalette(): the colors after the RGB cube are random
+			int numberofcolors = (int)Math.floor(options.numberofcolors);
+			int colorqnum = (int)Math.floor(Math.pow(numberofcolors, 1.0/3.0));
+			if( (numberofcolors>=8) && ((colorqnum*colorqnum*colorqnum)<numberofcolors) ){ return false; }
+		}
+		return true;
+	}// End of cacheable()
+
+
+	static byte [][] copy (byte [][] palette){
+		if(palette==null){ return null; }
+		byte [][] c = new byte[palette.length][];
+		for(int i=0; i<palette.length; i++){ c[i] = palette[i].clone(); }
+		return c;
+	}
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Memory tier
+	//
+	////////////////////////////////////////////////////////////
+
+	synchronized Object get (Key key){
+		Entry e = entries.get(key);
+		if(e==null){ return null; }
+		hits++;
+		return e.value;
+	}
+
+
+	synchronized void put (Key key, Object value, long size){
+		if(size>maxbytes){ return; }
+		Entry old = entries.put(key, new Entry(value, size));
+		if(old!=null){ bytes -= old.bytes; }
+		bytes += size;
+		Iterator<Map.Entry<Key,Entry>> it = entries.entrySet().iterator();
+		while( (bytes>maxbytes) && it.hasNext() ){
+			bytes -= it.next().getValue().bytes;
+			it.remove();
+			evictions++;
+		}
+	}// End of put()
+
+
+	// Approximate heap size of a tracedata result: index array, ArrayList layers and PathBuffers
+	static long estimatebytes (IndexedImage ii){
+		long n = 64;
+		if(ii.array!=null){ n += ii.array.length*(16L+(ii.array[0].length*4L)); }
+		if(ii.layers!=null){
+			for(java.util.ArrayList<java.util.ArrayList<Double[]>> layer : ii.layers){
+				for(java.util.ArrayList<Double[]> path : layer){ n += 48+(path.size()*(48L+(7*24))); }
+			}
+		}
+		if(ii.pathbuffers!=null){
+			for(PathBuffer pb : ii.pathbuffers){ n += 64+(pb.doubles==null ? 0 : pb.doubles.length*8L)+(pb.ints==null ? 0 : pb.ints.length*4L)+(pb.offsets.length*4L); }
+		}
+		return n;
+	}// End of estimatebytes()
+
+
+	// Memory tier size in bytes (estimated) and number of entries
+	public synchronized long bytes (){ return bytes; }
+	public synchronized int size (){ return entries.size(); }
+
+
+	// Emptying the memory tier, the disk tier is kept
+	public synchronized void clear (){ entries.clear(); bytes = 0; }
+
+
+	public synchronized String toString (){
+		return "TraceCache hits: "+hits+" , disk hits: "+diskhits+" , misses: "+misses+" , bypasses: "+bypasses+
+				" , evictions: "+evictions+" , disk evictions: "+diskevictions+" , entries: "+entries.size()+" , bytes: "+bytes+
+				(dir==null ? "" : " , disk bytes: "+diskbytes);
+	}
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Disk tier
+	//
+	////////////////////////////////////////////////////////////
+
+	// Writing to a temporary file first, so an other process doesn't read a partial file
+	void writedisk (File file, String svg){
+		byte [] data = svg.getBytes(StandardCharsets.UTF_8);
+		if(data.length>maxdiskbytes){ return; }
+		File tmp = new File(file.getPath()+"."+Thread.currentThread().getId()+".tmp");
+		try{
+			Files.write(tmp.toPath(), data);
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}catch(IOException e){
+			tmp.delete();
+			return;
+		}
+		synchronized(this){
+			diskbytes += data.length;
+			if(diskbytes>maxdiskbytes){ evictdisk(); }
+		}
+	}// End of writedisk()
+
+
+	// Deleting the oldest files until the disk tier fits in maxdiskbytes
+	void evictdisk (){
+		File [] files = dir.listFiles();
+		if(files==null){ return; }
+		final long [] times = new long[files.length];
+		Integer [] order = new Integer[files.length];
+		long total = 0;
+		for(int i=0; i<files.length; i++){
+			order[i] = i; times[i] = files[i].lastModified();
+			if(files[i].getName().endsWith(".svg")){ total += files[i].length(); }
+		}
+		Arrays.sort(order, new Comparator<Integer>(){ public int compare(Integer a, Integer b){ return Long.compare(times[a], times[b]); } });
+		for(int i=0; (i<order.length) && (total>maxdiskbytes); i++){
+			File f = files[order[i]];
+			if(!f.getName().endsWith(".svg")){ continue; }
+			long len = f.length();
+			if(f.delete()){ total -= len; diskevictions++; }
+		}
+		diskbytes = total;
+	}// End of evictdisk()
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Keys
+	//
+	////////////////////////////////////////////////////////////
+
+	static final class Key{
+		final long h1, h2;
+		Key(long mh1, long mh2){ h1 = mh1; h2 = mh2; }
+		public int hashCode (){ return (int)(h1^(h1>>>32)); }
+		public boolean equals (Object o){ return (o instanceof Key) && (((Key)o).h1==h1) && (((Key)o).h2==h2); }
+		String tostring (){ return String.format("%016x%016x", h1, h2); }
+	}
+
+
+	// Hash of the kind of result, the image, the options which change it and the palette
+	static Key key (int kind, ImageData imgd, TraceOptions options, byte [][] palette){
+		Hash128 h = new Hash128();
+		h.add(kind); h.add(imgd.width); h.add(imgd.height);
+		for(float v : normalize(kind, options)){ h.add(Float.floatToIntBits(v)); }
+		if(palette==null){
+			h.add(-1);
+		}else{
+			h.add(palette.length);
+			for(byte [] c : palette){ h.add(((c[0]&255)<<24)|((c[1]&255)<<16)|((c[2]&255)<<8)|(c[3]&255)); }
+		}
+		h.add(imgd.data, imgd.width*imgd.height*4);
+		return h.key();
+	}// End of key()
+
+
+	// The options as they are used by the tracing: integer options are floored, the blur options are 0 without blur,
+	// the SVG options are 0 for tracedata
+	static float [] normalize (int kind, TraceOptions o){
+		float blurradius = o.blurradius<1 ? 0 : Math.min(5, (float)Math.floor(o.blurradius));
+		float blurdelta = blurradius==0 ? 0 : Math.min(1024, (float)Math.floor(Math.abs(o.blurdelta)));
+		float [] v = {
+			o.ltres, o.qtres, (float)Math.floor(o.pathomit),
+			o.colorsampling==0 ? 0 : 1, (float)Math.floor(o.numberofcolors), o.mincolorratio, (float)Math.floor(o.colorquantcycles),
+			o.scale, o.simplifytolerance, o.roundcoords, o.lcpr, o.qcpr, o.desc, o.viewbox,
+			blurradius, blurdelta,
+			Math.max(0, o.colorquanttolerance), (float)Math.floor(o.seed), ((o.colorquantsample>0) && (o.colorquantsample<1)) ? o.colorquantsample : 0,
+			Quantizer.create(o)==Quantizer.KMEANSQUANTIZER ? 0 : (float)Math.floor(o.quantizer) };
+		if(kind!=SVG){ for(int i=7; i<14; i++){ v[i] = 0; } }
+		return v;
+	}// End of normalize()
+
+
+	// Two 64 bit multiply and rotate lanes on 8 byte words, with a final avalanche
+	static final class Hash128{
+		static final long P1 = 0x9E3779B97F4A7C15L, P2 = 0xC2B2AE3D27D4EB4FL, P3 = 0x165667B19E3779F9L;
+		long h1 = 0x243F6A8885A308D3L, h2 = 0x13198A2E03707344L, length = 0;
+
+		void add (long v){
+			h1 = Long.rotateLeft(h1^(v*P2), 31)*P1;
+			h2 = Long.rotateLeft(h2+(v*P3), 29)*P2;
+			length++;
+		}
+
+		void add (byte [] data, int n){
+			ByteBuffer bb = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+			int i = 0;
+			for(; i+8<=n; i+=8){ add(bb.getLong(i)); }
+			long tail = 0;
+			for(int s=0; i<n; i++, s+=8){ tail |= (data[i]&255L)<<s; }
+			add(tail); add(n);
+		}
+
+		static long fmix (long k){
+			k ^= k>>>33; k *= 0xFF51AFD7ED558CCDL; k ^= k>>>33; k *= 0xC4CEB9FE1A85EC53L; k ^= k>>>33;
+			return k;
+		}
+
+		Key key (){
+			long a = fmix(h1^length), b = fmix(h2+(h1*P3));
+			return new Key(a, b);
+		}
+	}// End of Hash128
+
+}// End of TraceCache class
@@ -0,0 +1,238 @@
+/*
+	TraceFile.java
+	Binary tracedata files: saving an IndexedImage and reading it memory mapped, to render SVG again without tracing
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+
+// File layout, little endian:
+//  header: "ITRC" , version (int) , width (int) , height (int) , number of layers (int) , 4 zero bytes
+//  layer directory: pathcount (int) , records (int) for every layer
+//  palette: RGBA bytes for every layer, padded to 8 bytes
+//  offsets: pathcount+1 ints for every layer, like PathBuffer.offsets, padded to 8 bytes
+//  segments: records*7 doubles for every layer, like PathBuffer.doubles (type, x1, y1, x2, y2, x3, y3)
+// The segments are the traced doubles, so the SVG rendered from a file is the same as from the IndexedImage, with any
+// scale, roundcoords, lcpr, qcpr, desc and viewbox.
+// A mapped TraceFile reads the paths from the file through offsets() and segments() without copying. pathbuffer() and
+// toindexedimage() copy the layers to PathBuffers with one bulk get, which is what the SVG rendering uses; the
+// ArrayList tracedata is not created. The mapping is released by the garbage collector.
+// The constructor checks the sections and the offsets (these are read once), a damaged file throws IOException.
+// Usage:
+//  TraceFile.save("image.itrc", ii);
+//  String svg = TraceFile.map(new File("image.itrc")).getsvgstring(options);
+public class TraceFile{
+
+	public static final int MAGIC = 0x43525449;// "ITRC" in little endian
+	public static final int VERSION = 1;
+	static final int HEADERBYTES = 24, STRIDE = 7;
+
+	final ByteBuffer buffer;
+	public final int width, height;
+	public final byte [][] palette;
+	final int [] pathcounts, records, offsetspos, segmentspos;
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Writing
+	//
+	////////////////////////////////////////////////////////////
+
+	public static void save (String filename, IndexedImage ii) throws IOException {
+		FileOutputStream fos = new FileOutputStream(new File(filename).getAbsoluteFile());
+		try{
+			write(ii, fos);
+		}finally{ fos.close(); }
+	}// End of save()
+
+
+	// Writing the tracedata of ii (ii.layers if it's not null, else ii.pathbuffers) to out, out is not closed, only flushed
+	public static void write (IndexedImage ii, OutputStream out) throws IOException {
+		PathBuffer [] layers = ii.layers!=null ? ImageTracer.topathbuffers(ii.layers) : ii.pathbuffers;
+		int n = layers.length;
+		ByteBuffer bb = ByteBuffer.allocate(1<<16).order(ByteOrder.LITTLE_ENDIAN);
+		OutputStream bout = new BufferedOutputStream(out, 1<<16);
+
+		bb.putInt(MAGIC).putInt(VERSION).putInt(ii.width).putInt(ii.height).putInt(n).putInt(0);
+		for(int k=0; k<n; k++){
+			bb = ensure(bb, 8, bout);
+			bb.putInt(layers[k].pathcount).putInt(layers[k].records);
+		}
+		for(int k=0; k<n; k++){
+			bb = ensure(bb, 4, bout);
+			bb.put(ii.palette[k], 0, 4);
+		}
+		if((n&1)!=0){ bb = ensure(bb, 4, bout); bb.putInt(0); }
+		long ints = 0;
+		for(int k=0; k<n; k++){
+			int [] o = layers[k].offsets;
+			for(int i=0, end=layers[k].pathcount+1, c; i<end; i+=c){
+				bb = ensure(bb, 4, bout);
+				c = Math.min(bb.remaining()/4, end-i);
+				bb.asIntBuffer().put(o, i, c);
+				bb.position(bb.position()+(c*4));
+			}
+			ints += layers[k].pathcount+1;
+		}
+		if((ints&1)!=0){ bb = ensure(bb, 4, bout); bb.putInt(0); }
+		for(int k=0; k<n; k++){
+			double [] d = layers[k].doubles;
+			for(int i=0, end=layers[k].records*STRIDE, c; i<end; i+=c){
+				bb = ensure(bb, 8, bout);
+				c = Math.min(bb.remaining()/8, end-i);
+				bb.asDoubleBuffer().put(d, i, c);
+				bb.position(bb.position()+(c*8));
+			}
+		}
+		bout.write(bb.array(), 0, bb.position());
+		bout.flush();
+	}// End of write()
+
+
+	// Writing bb to out if it has less than n bytes free
+	static ByteBuffer ensure (ByteBuffer bb, int n, OutputStream out) throws IOException {
+		if(bb.remaining()<n){
+			out.write(bb.array(), 0, bb.position());
+			bb.clear();
+		}
+		return bb;
+	}// End of ensure()
+
+
+	////////////////////////////////////////////////////////////
+	//
+	//  Reading
+	//
+	////////////////////////////////////////////////////////////
+
+	// Mapping a file read only, it can be closed or deleted after this
+	public static TraceFile map (File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try{
+			FileChannel fc = raf.getChannel();
+			if(fc.size()>Integer.MAX_VALUE){ throw new IOException("TraceFile larger than 2 GB: "+file); }
+			return new TraceFile(fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()));
+		}finally{ raf.close(); }
+	}// End of map()
+
+
+	// Reading a TraceFile from a buffer (mapped or not), the buffer must not be changed while this is used
+	public TraceFile(ByteBuffer mbuffer) throws IOException {
+		buffer = mbuffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+		try{
+			if(buffer.getInt(0)!=MAGIC){ throw new IOException("Not a TraceFile"); }
+			if(buffer.getInt(4)!=VERSION){ throw new IOException("Unsupported TraceFile version "+buffer.getInt(4)); }
+			width = buffer.getInt(8); height = buffer.getInt(12);
+			int n = buffer.getInt(16);
+			if( (n<0) || (n>(buffer.capacity()-HEADERBYTES)/12) ){ throw new IOException("Invalid number of layers "+n); }
+			pathcounts = new int[n]; records = new int[n]; offsetspos = new int[n]; segmentspos = new int[n];
+			palette = new byte[n][4];
+			int pos = HEADERBYTES;
+			for(int k=0; k<n; k++){ pathcounts[k] = buffer.getInt(pos); records[k] = buffer.getInt(pos+4); pos += 8; }
+			for(int k=0; k<n; k++){ for(int i=0; i<4; i++){ palette[k][i] = buffer.get(pos++); } }
+			pos = align8(pos);
+			long lpos = pos;
+			for(int k=0; k<n; k++){
+				if( (pathcounts[k]<0) || (records[k]<0) ){ throw new IOException("Invalid layer "+k); }
+				offsetspos[k] = checkpos(lpos); lpos += (pathcounts[k]+1)*4L;
+			}
+			lpos = (lpos+7)&~7L;
+			for(int k=0; k<n; k++){
+				segmentspos[k] = checkpos(lpos); lpos += records[k]*(long)STRIDE*8;
+			}
+			checkpos(lpos);
+			// the offsets of every layer: 0 ... records, never decreasing
+			for(int k=0; k<n; k++){
+				int previous = 0, o;
+				for(int p=0; p<=pathcounts[k]; p++){
+					o = buffer.getInt(offsetspos[k]+(p*4));
+					if( (o<previous) || ((p==0) && (o!=0)) ){ throw new IOException("Invalid TraceFile offsets"); }
+					previous = o;
+				}
+				if(previous!=records[k]){ throw new IOException("Invalid TraceFile offsets"); }
+			}
+		}catch(IndexOutOfBoundsException e){ throw new IOException("Truncated TraceFile"); }
+	}// End of TraceFile()
+
+
+	static int align8 (int pos){ return (pos+7)&~7; }
+
+
+	int checkpos (long pos) throws IOException {
+		if(pos>buffer.capacity()){ throw new IOException("Truncated TraceFile"); }
+		return (int)pos;
+	}
+
+
+	public int layercount (){ return pathcounts.length; }
+
+
+	public int pathcount (int k){ return pathcounts[k]; }
+
+
+	// Path p of layer k has the segments offsets(k).get(p) ... offsets(k).get(p+1)-1
+	public IntBuffer offsets (int k){
+		ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		b.position(offsetspos[k]); b.limit(offsetspos[k]+((pathcounts[k]+1)*4));
+		return b.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+	}// End of offsets()
+
+
+	// Field f of segment r of layer k is segments(k).get((r*7)+f)
+	public DoubleBuffer segments (int k){
+		ByteBuffer b = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		b.position(segmentspos[k]); b.limit(segmentspos[k]+(records[k]*STRIDE*8));
+		return b.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+	}// End of segments()
+
+
+	// Copying layer k to a PathBuffer
+	public PathBuffer pathbuffer (int k){
+		PathBuffer pb = new PathBuffer(STRIDE, false, records[k]);
+		int [] offsets = new int[pathcounts[k]+1];
+		offsets(k).get(offsets);
+		segments(k).get(pb.doubles, 0, records[k]*STRIDE);
+		pb.offsets = offsets.length>=16 ? offsets : Arrays.copyOf(offsets, 16);
+		pb.pathcount = pathcounts[k]; pb.records = records[k];
+		return pb;
+	}// End of pathbuffer()
+
+
+	// IndexedImage with the tracedata in pathbuffers, without the indexed color array
+	public IndexedImage toindexedimage (){
+		byte [][] p = new byte[palette.length][];
+		for(int k=0; k<p.length; k++){ p[k] = palette[k].clone(); }
+		IndexedImage ii = new IndexedImage(width, height, p);
+		ii.pathbuffers = new PathBuffer[pathcounts.length];
+		for(int k=0; k<pathcounts.length; k++){ ii.pathbuffers[k] = pathbuffer(k); }
+		return ii;
+	}// End of toindexedimage()
+
+
+	// The same as ImageTracer.getsvgstring() and writesvg() of the saved IndexedImage
+	public String getsvgstring (TraceOptions options){
+		return ImageTracer.getsvgstring(toindexedimage(), options, null);
+	}
+	public void writesvg (TraceOptions options, Writer out) throws IOException {
+		ImageTracer.writesvg(toindexedimage(), options, out, null);
+	}
+
+}// End of TraceFile class
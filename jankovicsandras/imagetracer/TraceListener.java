@@ -0,0 +1,45 @@
+/*
+	TraceListener.java
+	Per-stage timing and counters of ImageTracer
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+// Receives the wall time, allocated bytes and counters of the tracing stages. Pass it to imagedataToTracebuffers(),
+// imagedataToTracedata(), imagedataToSVG(), getsvgstring() or writesvg(). When it's null nothing is measured or counted.
+// Calls can come from more threads at the same time if more images are traced in parallel.
+// See TraceMetrics for a thread safe implementation that sums everything.
+public interface TraceListener{
+
+	// Stages
+	String BLUR = "blur";
+	String COLORQUANTIZATION = "colorquantization";// without blur
+	String LAYERING = "layering";
+	String PATHSCAN = "pathscan";
+	String INTERNODES = "internodes";
+	String TRACEPATH = "tracepath";
+	String SVG = "svg";
+
+	// Counters
+	String PIXELS = "pixels";
+	String COLORS = "colors";// palette colors with at least one pixel
+	String COLORQUANTCYCLES = "colorquantcycles";// color quantization cycles done
+	String REASSIGNEDPIXELS = "reassignedpixels";// pixels with a new color after the first color quantization cycle
+	String EDGENODES = "edgenodes";// edge nodes which are not 0 or 15
+	String PATHS = "paths";// paths kept by pathscan()
+	String HOLEPATHS = "holepaths";// dropped hole paths
+	String OMITTEDPATHS = "omittedpaths";// dropped paths shorter than pathomit
+	String INTERNODEPOINTS = "internodepoints";
+	String LINES = "lines";// line segments
+	String SPLINES = "splines";// quadratic spline segments
+	String OUTPUTBYTES = "outputbytes";// SVG bytes
+
+	// A stage has finished. allocatedbytes is -1 if the JVM can't measure it or the stage ran on a thread pool.
+	void stage (String stage, long nanos, long allocatedbytes);
+
+	// Adding value to a counter
+	void count (String counter, long value);
+
+}// End of TraceListener interface
@@ -0,0 +1,70 @@
+/*
+	TraceMetrics.java
+	Summing TraceListener for exporting ImageTracer metrics
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+// Thread safe totals of every stage and counter, these can be shared by many traces.
+// Stage metrics are named <stage>.calls , <stage>.nanos and <stage>.allocatedbytes , counters by their name.
+// Exporting to a metrics system, for example: metrics.export( (name,value) -> registry.counter("imagetracer."+name).increment(value) );
+public class TraceMetrics implements TraceListener{
+
+	final ConcurrentHashMap<String,AtomicLong> totals = new ConcurrentHashMap<String,AtomicLong>();
+
+	public void stage (String stage, long nanos, long allocatedbytes){
+		add(stage+".calls", 1);
+		add(stage+".nanos", nanos);
+		if(allocatedbytes>=0){ add(stage+".allocatedbytes", allocatedbytes); }
+	}
+
+
+	public void count (String counter, long value){ add(counter, value); }
+
+
+	void add (String name, long value){
+		AtomicLong total = totals.get(name);
+		if(total==null){
+			AtomicLong newtotal = new AtomicLong();
+			total = totals.putIfAbsent(name, newtotal);
+			if(total==null){ total = newtotal; }
+		}
+		total.addAndGet(value);
+	}// End of add()
+
+
+	// Total of a metric, 0 if it wasn't reported
+	public long get (String name){
+		AtomicLong total = totals.get(name);
+		return total==null ? 0 : total.get();
+	}
+
+
+	// Sorted copy of all totals
+	public Map<String,Long> snapshot (){
+		TreeMap<String,Long> map = new TreeMap<String,Long>();
+		for(Map.Entry<String,AtomicLong> e : totals.entrySet()){ map.put(e.getKey(), e.getValue().get()); }
+		return map;
+	}
+
+
+	// Passing every total to sink in name order
+	public void export (BiConsumer<String,Long> sink){
+		for(Map.Entry<String,Long> e : snapshot().entrySet()){ sink.accept(e.getKey(), e.getValue()); }
+	}
+
+
+	public void reset (){ totals.clear(); }
+
+
+	public String toString (){ return snapshot().toString(); }
+
+}// End of TraceMetrics class
@@ -0,0 +1,108 @@
+/*
+	TraceOptions.java
+	Immutable, checked tracing options with primitive fields
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import java.util.HashMap;
+
+// The same options as the HashMap<String,Float> options (see README.md), looked up once. A TraceOptions can be shared by
+// threads. The HashMap functions of ImageTracer create one with frommap(), missing options get the default values.
+// Usage:
+//  TraceOptions options = TraceOptions.DEFAULT.with("numberofcolors",8).with("scale",2);
+public class TraceOptions{
+
+	// Option names and default values
+	public static final String [] KEYS = {
+		// Tracing
+		"ltres", "qtres", "pathomit",
+		// Color quantization
+		"colorsampling", "numberofcolors", "mincolorratio", "colorquantcycles",
+		// SVG rendering
+		"scale", "simplifytolerance", "roundcoords", "lcpr", "qcpr", "desc", "viewbox",
+		// Blur
+		"blurradius", "blurdelta",
+		// Color quantization convergence, random numbers, palette training sample and quantizer
+		"colorquanttolerance", "seed", "colorquantsample", "quantizer" };
+	static final float [] DEFAULTVALUES = {
+		1f, 1f, 8f,
+		1f, 16f, 0.02f, 3f,
+		1f, 0f, 1f, 0f, 0f, 1f, 0f,
+		0f, 20f,
+		0f, 0f, 0f, 0f };
+
+	public static final TraceOptions DEFAULT = new TraceOptions(DEFAULTVALUES);
+
+	public final float ltres, qtres, pathomit;
+	public final float colorsampling, numberofcolors, mincolorratio, colorquantcycles;
+	public final float scale, simplifytolerance, roundcoords, lcpr, qcpr, desc, viewbox;
+	public final float blurradius, blurdelta;
+	public final float colorquanttolerance, seed, colorquantsample, quantizer;
+
+	TraceOptions(float [] v){
+		for(int i=0; i<KEYS.length; i++){
+			if(Float.isNaN(v[i])||Float.isInfinite(v[i])){ throw new IllegalArgumentException("Option "+KEYS[i]+" is not a finite number: "+v[i]); }
+		}
+		if(Math.floor(v[4])<1){ throw new IllegalArgumentException("Option numberofcolors must be at least 1: "+v[4]); }
+		ltres = v[0]; qtres = v[1]; pathomit = v[2];
+		colorsampling = v[3]; numberofcolors = v[4]; mincolorratio = v[5]; colorquantcycles = v[6];
+		scale = v[7]; simplifytolerance = v[8]; roundcoords = v[9]; lcpr = v[10]; qcpr = v[11]; desc = v[12]; viewbox = v[13];
+		blurradius = v[14]; blurdelta = v[15];
+		colorquanttolerance = v[16]; seed = v[17]; colorquantsample = v[18]; quantizer = v[19];
+	}
+
+
+	// Creating options from a map, missing options get the default values, other keys are ignored. options can be null,
+	// it's not modified. Throws IllegalArgumentException if a value is not valid.
+	public static TraceOptions frommap (HashMap<String,Float> options){
+		if(options==null){ return DEFAULT; }
+		float [] v = DEFAULTVALUES.clone();
+		for(int i=0; i<KEYS.length; i++){
+			Float f = options.get(KEYS[i]);
+			if(f!=null){ v[i] = f; }
+		}
+		return new TraceOptions(v);
+	}// End of frommap()
+
+
+	// All options in a new map
+	public HashMap<String,Float> tomap (){
+		HashMap<String,Float> options = new HashMap<String,Float>();
+		float [] v = values();
+		for(int i=0; i<KEYS.length; i++){ options.put(KEYS[i], v[i]); }
+		return options;
+	}
+
+
+	// A copy with one option changed
+	public TraceOptions with (String key, float value){
+		float [] v = values();
+		v[index(key)] = value;
+		return new TraceOptions(v);
+	}
+
+
+	public float get (String key){ return values()[index(key)]; }
+
+
+	static int index (String key){
+		for(int i=0; i<KEYS.length; i++){ if(KEYS[i].equals(key)){ return i; } }
+		throw new IllegalArgumentException("Unknown option: "+key);
+	}
+
+
+	float [] values (){
+		return new float[]{ ltres, qtres, pathomit,
+			colorsampling, numberofcolors, mincolorratio, colorquantcycles,
+			scale, simplifytolerance, roundcoords, lcpr, qcpr, desc, viewbox,
+			blurradius, blurdelta,
+			colorquanttolerance, seed, colorquantsample, quantizer };
+	}
+
+
+	public String toString (){ return tomap().toString(); }
+
+}// End of TraceOptions class
@@ -0,0 +1,64 @@
+/*
+	VectorPaletteSearch.java
+	SIMD closest palette color search with jdk.incubator.vector, this needs JDK 16+ and the java16 Maven profile
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer.java16;
+
+import jankovicsandras.imagetracer.PaletteSearch;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// The palette is stored as structure of arrays (one short array for every channel), so a vector holds one channel of
+// SPECIES.length() palette colors and the distances to all of them are calculated at once. The arrays are padded to a
+// multiple of the vector length with colors which are farther than any real color (the distance fits in a short).
+// Loaded by PaletteSearch with reflection, the rest of ImageTracer doesn't depend on this class.
+public final class VectorPaletteSearch extends PaletteSearch{
+
+	static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+	static final short PADDING = 1000;
+
+	public static final PaletteSearch.Factory FACTORY = new PaletteSearch.Factory(){
+		public PaletteSearch create (byte [][] palette){ return new VectorPaletteSearch(palette); }
+	};
+
+	final short [] r, g, b, a;
+	final int length;
+
+	public VectorPaletteSearch(byte [][] palette){
+		length = ((palette.length+SPECIES.length()-1)/SPECIES.length())*SPECIES.length();
+		r = new short[length]; g = new short[length]; b = new short[length]; a = new short[length];
+		for(int k=0; k<length; k++){
+			if(k<palette.length){
+				r[k] = palette[k][0]; g[k] = palette[k][1]; b[k] = palette[k][2]; a[k] = palette[k][3];
+			}else{
+				r[k] = PADDING; g[k] = PADDING; b[k] = PADDING; a[k] = PADDING;
+			}
+		}
+	}
+
+
+	public int closest (byte [] data, int idx){
+		ShortVector pr = ShortVector.broadcast(SPECIES, data[idx  ]);
+		ShortVector pg = ShortVector.broadcast(SPECIES, data[idx+1]);
+		ShortVector pb = ShortVector.broadcast(SPECIES, data[idx+2]);
+		ShortVector pa = ShortVector.broadcast(SPECIES, data[idx+3]);
+		// like closestcolor(): the first color with a distance less than the best so far, starting with 1024
+		int cdl = 256+256+256+256, ci = 0;
+		ShortVector cd;
+		short min;
+		for(int k=0; k<length; k+=SPECIES.length()){
+			cd = ShortVector.fromArray(SPECIES, r, k).sub(pr).abs()
+				.add(ShortVector.fromArray(SPECIES, g, k).sub(pg).abs())
+				.add(ShortVector.fromArray(SPECIES, b, k).sub(pb).abs())
+				.add(ShortVector.fromArray(SPECIES, a, k).sub(pa).abs().lanewise(VectorOperators.LSHL, 2));
+			min = cd.reduceLanes(VectorOperators.MIN);
+			if(min<cdl){ cdl = min; ci = k+cd.compare(VectorOperators.EQ, min).firstTrue(); }
+		}
+		return ci;
+	}// End of closest()
+
+}// End of VectorPaletteSearch class
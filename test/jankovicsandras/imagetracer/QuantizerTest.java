@@ -0,0 +1,100 @@
+/*
+	QuantizerTest.java
+	Palette sizes of the single pass quantizers, empty images, and the same palette tile by tile
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+import jankovicsandras.imagetracer.ImageTracer.ImageData;
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+
+public class QuantizerTest{
+
+	// testimages/*.png, panda.png and smiley.png
+	static List<File> images (){
+		List<File> files = new ArrayList<File>();
+		File [] list = new File("testimages").listFiles();
+		assertTrue("testimages not found, the tests run in the repository root", list!=null);
+		Arrays.sort(list);
+		for(File f : list){ if(f.getName().endsWith(".png")){ files.add(f); } }
+		files.add(new File("panda.png"));
+		files.add(new File("smiley.png"));
+		return files;
+	}
+
+
+	// Colors of imgd with bits bits per channel: the leaves of the octree and the bins of the median cut histogram
+	static int colors (ImageData imgd, int bits){
+		HashSet<Integer> bins = new HashSet<Integer>();
+		for(int idx=0; idx<imgd.data.length; idx+=4){ bins.add(MedianCutQuantizer.bin(imgd.data, idx, 8-bits)); }
+		return bins.size();
+	}
+
+
+	// numberofcolors colors, or all colors of the image if it has fewer
+	@Test
+	public void palettesize () throws Exception {
+		for(File f : images()){
+			ImageData imgd = ImageTracer.loadImageData(f.getPath());
+			for(int bits : new int[]{ 3, Quantizer.DEFAULTBITS }){
+				int colors = colors(imgd, bits);
+				for(int q : new int[]{ Quantizer.OCTREE, Quantizer.MEDIANCUT }){
+					Quantizer.SinglePass quantizer = (Quantizer.SinglePass)Quantizer.create(q, bits);
+					for(int n : new int[]{ 1, 2, 7, 8, 16, 64 }){
+						assertEquals(f.getName()+" quantizer "+q+" bits "+bits+" numberofcolors "+n, Math.min(n, colors), quantizer.palette(imgd, n).length);
+					}
+				}
+			}
+		}
+	}// End of palettesize()
+
+
+	// Single pass quantizers trace an empty image to an empty SVG
+	@Test
+	public void emptyimage (){
+		ImageData empty = new ImageData(0, 0, new byte[0]);
+		for(int q : new int[]{ Quantizer.OCTREE, Quantizer.MEDIANCUT }){
+			TraceOptions options = TraceOptions.DEFAULT.with("quantizer", q).with("blurradius", 2);
+			IndexedImage ii = ImageTracer.imagedataToTracebuffers(empty, options, null, null, null);
+			assertEquals(0, ii.palette.length);
+			assertEquals(0, ((Quantizer.SinglePass)Quantizer.create(options)).palette(empty, 16).length);
+			assertEquals(0, IncrementalTracer.trace(empty, options, null, null).palette.length);
+		}
+	}// End of emptyimage()
+
+
+	// The palette doesn't depend on the order of the pixels: the tiles of TiledTracer make the same palette and SVG
+	@Test
+	public void tiled () throws Exception {
+		ImageData imgd = ImageTracer.loadImageData("panda.png");
+		for(int q : new int[]{ Quantizer.OCTREE, Quantizer.MEDIANCUT }){
+			Quantizer.SinglePass quantizer = (Quantizer.SinglePass)Quantizer.create(q, Quantizer.DEFAULTBITS);
+			Quantizer.SinglePass.Accumulator acc = quantizer.accumulator();
+			int ts = 37;
+			for(int y=((imgd.height-1)/ts)*ts; y>=0; y-=ts){
+				for(int x=0; x<imgd.width; x+=ts){ acc.accumulate(TiledTracer.crop(imgd, x, y, Math.min(ts, imgd.width-x), Math.min(ts, imgd.height-y))); }
+			}
+			assertArrayEquals("quantizer "+q, quantizer.palette(imgd, 16), acc.finish(16));
+
+			TraceOptions options = TraceOptions.DEFAULT.with("quantizer", q).with("blurradius", 2);
+			String expected = ImageTracer.getsvgstring(ImageTracer.imagedataToTracebuffers(imgd, options, null, null, null), options, null);
+			assertEquals("quantizer "+q, expected, ImageTracer.getsvgstring(TiledTracer.trace(TiledTracer.source(imgd), options, null, 64, null), options, null));
+			assertEquals("quantizer "+q, expected, ImageTracer.getsvgstring(IncrementalTracer.trace(imgd, options, null, null), options, null));
+		}
+	}// End of tiled()
+
+}// End of QuantizerTest class
@@ -0,0 +1,94 @@
+/*
+	SplineFitterTest.java
+	SplineFitter.tracepath() must make the same segments as the recursive ImageTracer.tracepath() on the ArrayList paths
+
+	The Unlicense / PUBLIC DOMAIN, see ImageTracer.java for details.
+
+ */
+package jankovicsandras.imagetracer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import jankovicsandras.imagetracer.ImageTracer.IndexedImage;
+
+public class SplineFitterTest{
+
+	// ltres, qtres pairs: the defaults, small values with deep splitting, and large values with few segments
+	static final float [][] TRESHOLDS = { {1,1}, {0.1f,0.01f}, {0.01f,0.5f}, {5,0.01f}, {10,10} };
+
+
+	// testimages/*.png, panda.png and smiley.png
+	static List<File> images (){
+		List<File> files = new ArrayList<File>();
+		File [] list = new File("testimages").listFiles();
+		assertTrue("testimages not found, the tests run in the repository root", list!=null);
+		Arrays.sort(list);
+		for(File f : list){ if(f.getName().endsWith(".png")){ files.add(f); } }
+		files.add(new File("panda.png"));
+		files.add(new File("smiley.png"));
+		return files;
+	}
+
+
+	@Test
+	public void sameastracepath () throws Exception {
+		TraceOptions options = TraceOptions.DEFAULT.with("seed", 1).with("numberofcolors", 16);
+		SplineFitter fitter = new SplineFitter();
+		int layers = 0;
+		for(File f : images()){
+			IndexedImage ii = ImageTracer.colorquantization(ImageTracer.loadImageData(f.getPath()), null, options, null, null, null);
+			PathBuffer [] internodes = ImageTracer.batchinternodes(ImageTracer.batchpathscan(ImageTracer.compactlayering(ii), options.pathomit, null), null);
+			for(int k=0; k<internodes.length; k++){
+				ArrayList<ArrayList<Double[]>> paths = internodes[k].todoublelists();
+				for(float [] t : TRESHOLDS){
+					PathBuffer expected = PathBuffer.fromdoublelists(ImageTracer.batchtracepaths(paths, t[0], t[1]), 7);
+					PathBuffer out = new PathBuffer(7, false, 1);
+					for(int p=0; p<internodes[k].pathcount; p++){ fitter.tracepath(internodes[k], p, t[0], t[1], out); }
+					assertsame(f.getName()+" layer "+k+" ltres "+t[0]+" qtres "+t[1], expected, out);
+				}
+				layers++;
+			}
+		}
+		assertTrue(layers>0);
+	}// End of sameastracepath()
+
+
+	// The static ImageTracer.tracepath() on PathBuffers and the batch functions use SplineFitter too
+	@Test
+	public void batchtracelayers () throws Exception {
+		TraceOptions options = TraceOptions.DEFAULT.with("seed", 1).with("numberofcolors", 8);
+		IndexedImage ii = ImageTracer.colorquantization(ImageTracer.loadImageData("panda.png"), null, options, null, null, null);
+		PathBuffer [] internodes = ImageTracer.batchinternodes(ImageTracer.batchpathscan(ImageTracer.compactlayering(ii), options.pathomit, null), null);
+		PathBuffer [] traced = ImageTracer.batchtracelayers(internodes, options.ltres, options.qtres, null);
+		for(int k=0; k<internodes.length; k++){
+			PathBuffer single = new PathBuffer(7, false);
+			for(int p=0; p<internodes[k].pathcount; p++){ ImageTracer.tracepath(internodes[k], p, options.ltres, options.qtres, single); }
+			PathBuffer expected = PathBuffer.fromdoublelists(ImageTracer.batchtracepaths(internodes[k].todoublelists(), options.ltres, options.qtres), 7);
+			assertsame("panda.png layer "+k, expected, traced[k]);
+			assertsame("panda.png layer "+k, expected, single);
+		}
+	}// End of batchtracelayers()
+
+
+	// Same paths and bit for bit the same segment doubles
+	static void assertsame (String message, PathBuffer expected, PathBuffer actual){
+		assertEquals(message+" pathcount", expected.pathcount, actual.pathcount);
+		assertEquals(message+" records", expected.records, actual.records);
+		for(int p=0; p<=expected.pathcount; p++){ assertEquals(message+" offset "+p, expected.offsets[p], actual.offsets[p]); }
+		for(int i=0; i<expected.records*7; i++){
+			if(Double.doubleToLongBits(expected.doubles[i])!=Double.doubleToLongBits(actual.doubles[i])){
+				assertEquals(message+" segment "+(i/7)+" field "+(i%7), expected.doubles[i], actual.doubles[i], 0);
+				assertEquals(message+" segment "+(i/7)+" field "+(i%7)+" sign", Double.doubleToLongBits(expected.doubles[i]), Double.doubleToLongBits(actual.doubles[i]));
+			}
+		}
+	}// End of assertsame()
+
+}// End of SplineFitterTest class